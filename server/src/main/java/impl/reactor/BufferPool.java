@@ -0,0 +1,128 @@
+package impl.reactor;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable direct ByteBuffers, used for socket reads and writes.<br/>
+ * Buffers are handed out in a few fixed size classes. Every ReactorLoop owns a
+ * pool of its own, but buffers may be acquired and released from any thread
+ * (e.g. by the worker threads, once the tokenizer has consumed them).
+ */
+public class BufferPool {
+
+	private static final int[] SIZE_CLASSES = { 256, 1024, 4096, 16384, 65536 };
+
+	/** The smallest buffer the pool hands out */
+	public static final int MIN_SIZE = SIZE_CLASSES[0];
+
+	/** The largest buffer the pool hands out */
+	public static final int MAX_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+	private final Queue<ByteBuffer>[] _free;
+
+	private final AtomicInteger[] _freeCount;
+
+	private final int[] _maxFree;
+
+	/**
+	 * Creates a new BufferPool
+	 *
+	 * @param bytesPerClass
+	 *            the number of bytes the pool may keep unused in every size
+	 *            class. Buffers released beyond that are left to the garbage
+	 *            collector.
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int bytesPerClass) {
+		_free = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES.length];
+		_freeCount = new AtomicInteger[SIZE_CLASSES.length];
+		_maxFree = new int[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			_free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			_freeCount[i] = new AtomicInteger();
+			_maxFree[i] = bytesPerClass / SIZE_CLASSES[i];
+		}
+	}
+
+	/**
+	 * Returns a cleared direct buffer of at least the given size.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if size is larger than {@link #MAX_SIZE}
+	 */
+	public ByteBuffer acquire(int size) {
+		int index = classOf(size);
+		if (index == -1) {
+			throw new IllegalArgumentException("buffer size " + size + " is larger than " + MAX_SIZE);
+		}
+
+		ByteBuffer buf = _free[index].poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(SIZE_CLASSES[index]);
+		}
+		_freeCount[index].decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that were not acquired from a
+	 * BufferPool are ignored, so any outgoing buffer may be released.<br/>
+	 * The caller must not use the buffer after releasing it.
+	 */
+	public void release(ByteBuffer buf) {
+		if (!buf.isDirect()) {
+			return;
+		}
+		int index = classOf(buf.capacity());
+		if (index == -1 || SIZE_CLASSES[index] != buf.capacity()) {
+			return;
+		}
+
+		if (_freeCount[index].incrementAndGet() > _maxFree[index]) {
+			_freeCount[index].decrementAndGet();
+			return;
+		}
+		_free[index].add(buf);
+	}
+
+	/**
+	 * @return the size class following the one of the given size, or
+	 *         {@link #MAX_SIZE} if there is none
+	 */
+	public static int largerSize(int size) {
+		int index = classOf(size);
+		if (index == -1 || index == SIZE_CLASSES.length - 1) {
+			return MAX_SIZE;
+		}
+		return SIZE_CLASSES[index + 1];
+	}
+
+	/**
+	 * @return the size class preceding the one of the given size, or
+	 *         {@link #MIN_SIZE} if there is none
+	 */
+	public static int smallerSize(int size) {
+		int index = classOf(size);
+		if (index <= 0) {
+			return index == -1 ? SIZE_CLASSES[SIZE_CLASSES.length - 2] : MIN_SIZE;
+		}
+		return SIZE_CLASSES[index - 1];
+	}
+
+	/**
+	 * @return the index of the smallest size class that can hold size bytes,
+	 *         or -1 if size is larger than all of them
+	 */
+	private static int classOf(int size) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (size <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
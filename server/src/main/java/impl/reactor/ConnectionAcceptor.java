@@ -1,20 +1,33 @@
 package impl.reactor;
 
 import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.channels.SelectionKey;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import impl.reactor.events.AcceptEvent;
 
 /**
  * Handles new client connections. An Acceptor is bound on a ServerSocketChannel
  * objects, which can produce new SocketChannels for new clients using its
- * <CODE>accept</CODE> method.
+ * <CODE>accept</CODE> method.<br/>
+ * Every new connection is handed to one of the ReactorLoops, in a round robin
+ * manner, and is served by that loop from then on.
  */
 public class ConnectionAcceptor<T> {
+
+	private static final Logger logger = Logger.getLogger("edu.spl.reactor");
+
 	protected ServerSocketChannel _ssChannel;
 
-	protected ReactorData<T> _data;
+	protected final List<ReactorLoop<T>> _loops;
+
+	protected final ReactorData<T> _data;
+
+	private int _nextLoop = 0;
 
 	/**
 	 * Creates a new ConnectionAcceptor
@@ -22,20 +35,24 @@ public class ConnectionAcceptor<T> {
 	 * @param ssChannel
 	 *            the ServerSocketChannel which can accept new connections
 	 * @param data
-	 *            a reference to ReactorData object
+	 *            the ReactorData of the loop the acceptor is registered to
+	 * @param loops
+	 *            the loops that serve the accepted connections
 	 */
-	public ConnectionAcceptor(ServerSocketChannel ssChannel, ReactorData<T> data) {
+	public ConnectionAcceptor(ServerSocketChannel ssChannel, ReactorData<T> data, List<ReactorLoop<T>> loops) {
 		_ssChannel = ssChannel;
 		_data = data;
+		_loops = loops;
 	}
 
 	/**
-	 * Accepts a connection:
+	 * Accepts the pending connections, up to the accept budget. For each of
+	 * them:
 	 * <UL>
 	 * <LI>Creates a SocketChannel for it
-	 * <LI>Creates a ConnectionHandler for it
-	 * <LI>Registers the SocketChannel and the ConnectionHandler to the
-	 * Selector
+	 * <LI>Rejects it right away, if the ConnectionLimiter does not admit it
+	 * <LI>Otherwise, hands it to the next ReactorLoop, which creates a
+	 * ConnectionHandler for it and registers it to its Selector
 	 * </UL>
 	 * 
 	 * @throws IOException
@@ -43,19 +60,48 @@ public class ConnectionAcceptor<T> {
 	 *             connection
 	 */
 	public void accept() throws IOException {
-		// Get a new channel for the connection request
-		SocketChannel sChannel = _ssChannel.accept();
+		int budget = _data.getConfig().getAcceptBudget();
+		for (int i = 0; i < budget; i++) {
+			// Get a new channel for the connection request
+			SocketChannel sChannel = _ssChannel.accept();
 
-		// If serverSocketChannel is non-blocking, sChannel may be null
-		if (sChannel != null) {
-			SocketAddress address = sChannel.socket().getRemoteSocketAddress();
+			// If serverSocketChannel is non-blocking, sChannel may be null
+			if (sChannel == null) {
+				return;
+			}
 
-			System.out.println("Accepting connection from " + address);
-			sChannel.configureBlocking(false);
-			SelectionKey key = sChannel.register(_data.getSelector(), 0);
+			boolean admitted = _data.getConnectionLimiter().tryAdmit();
+			AcceptEvent event = new AcceptEvent();
+			if (event.shouldCommit()) {
+				event.remoteAddress = String.valueOf(sChannel.socket().getRemoteSocketAddress());
+				event.admitted = admitted;
+				event.commit();
+			}
+			if (!admitted) {
+				reject(sChannel);
+				continue;
+			}
+			_data.getMetrics().getConnectionsAccepted().increment();
 
-			ConnectionHandler<T> handler = ConnectionHandler.create(sChannel, _data, key);
-			handler.switchToReadOnlyMode(); // set the handler to read only mode
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("Accepting connection from " + sChannel.socket().getRemoteSocketAddress());
+			}
+			ReactorLoop<T> loop = _loops.get(_nextLoop);
+			_nextLoop = (_nextLoop + 1) % _loops.size();
+			loop.addChannel(sChannel);
+		}
+	}
+
+	/**
+	 * Closes a connection that was not admitted, with a reset, so that it
+	 * costs neither a handler nor a TIME_WAIT socket
+	 */
+	private void reject(SocketChannel sChannel) {
+		try {
+			sChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+			sChannel.close();
+		} catch (IOException ignored) {
+			ignored = null;
 		}
 	}
 }
@@ -5,10 +5,18 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ClosedChannelException;
 import java.nio.ByteBuffer;
 import java.io.IOException;
-import java.net.SocketAddress;
-import java.util.Vector;
+import java.io.UncheckedIOException;
+import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import impl.reactor.events.OutboundFlushEvent;
 import protocol.*;
 import tokenizer.*;
 
@@ -17,7 +25,10 @@ import tokenizer.*;
  */
 public class ConnectionHandler<T> {
 
-	private static final int BUFFER_SIZE = 1024;
+	private static final int INITIAL_READ_SIZE = 1024;
+
+	/** the maximal number of buffers sent in a single gathering write */
+	private static final int MAX_GATHERED_BUFFERS = 64;
 
 	protected final SocketChannel _sChannel;
 
@@ -26,7 +37,66 @@ public class ConnectionHandler<T> {
 	protected final AsyncServerProtocol<T> _protocol;
 	protected final MessageTokenizer<T> _tokenizer;
 
-	protected Vector<ByteBuffer> _outData = new Vector<ByteBuffer>();
+	/**
+	 * the data waiting to be sent. Any thread may add to it without locking,
+	 * but only the selector loop removes from it.
+	 */
+	protected final Queue<OutboundBuffer> _outData = new ConcurrentLinkedQueue<OutboundBuffer>();
+
+	/**
+	 * held while a message is encoded and queued, so that the messages are
+	 * queued in the order they were encoded. a stateful encoding (e.g. a
+	 * compressed stream) depends on it.
+	 */
+	private final Object _sendLock = new Object();
+
+	private final ByteBuffer[] _gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+
+	/** true while a change of the interest ops waits for the selector loop */
+	private final AtomicBoolean _interestOpsPosted = new AtomicBoolean(false);
+
+	/** the number of bytes in _outData that were not sent yet */
+	private final AtomicLong _outBytes = new AtomicLong();
+
+	/** true while the client does not read its data fast enough */
+	private volatile boolean _readPaused = false;
+
+	/**
+	 * the time (System.nanoTime) the protocol asked to stop reading until, or
+	 * 0
+	 */
+	private volatile long _readSuspendedUntil = 0;
+
+	/** the timer that resumes reading once the suspension is over */
+	private TimingWheel.Timeout _resumeTimer = null;
+
+	/** the time (System.nanoTime) _outBytes went above the hard cap, or 0 */
+	private volatile long _overHardCapSince = 0;
+
+	/**
+	 * the timer that evicts the client if it is still above the hard cap when
+	 * the grace period ends
+	 */
+	private TimingWheel.Timeout _hardCapTimer = null;
+
+	/**
+	 * the time (System.nanoTime) the oldest data in _outData was queued, or 0
+	 * if there is none
+	 */
+	private final AtomicLong _queuedSince = new AtomicLong();
+
+	/** true once the client is found to be a slow consumer */
+	private volatile boolean _evicted = false;
+
+	private final AtomicBoolean _closed = new AtomicBoolean(false);
+
+	/** the time (System.nanoTime) of the last read from the client */
+	private long _lastReadTime;
+
+	/** true if the protocol was told the connection is idle since the last read */
+	private boolean _heartbeatSent = false;
+
+	private TimingWheel.Timeout _idleTimer = null;
 
 	protected final SelectionKey _skey;
 
@@ -34,6 +104,14 @@ public class ConnectionHandler<T> {
 
 	private ProtocolTask<T> _task = null;
 
+	/**
+	 * the size of the next read buffer, adapted to the amount of data the
+	 * client sends
+	 */
+	private int _readSize = INITIAL_READ_SIZE;
+
+	private int _smallReads = 0;
+
 	/**
 	 * Creates a new ConnectionHandler object
 	 * 
@@ -53,7 +131,9 @@ public class ConnectionHandler<T> {
 	// make sure 'this' does not escape b4 the object is fully constructed!
 	private void initialize() {
 		_skey.attach(this);
-		_task = new ProtocolTask<T>(_protocol, _tokenizer, this);
+		_task = new ProtocolTask<T>(_protocol, _tokenizer, this, _data);
+		_lastReadTime = System.nanoTime();
+		scheduleIdleCheck();
 	}
 
 	public static <T> ConnectionHandler<T> create(SocketChannel sChannel, ReactorData<T> data, SelectionKey key) {
@@ -62,12 +142,156 @@ public class ConnectionHandler<T> {
 		return h;
 	}
 
-	public synchronized void addOutData(ByteBuffer buf) {
-		_outData.add(buf);
-		switchToReadWriteMode();
+	/**
+	 * Queues data to be sent to the client, and accounts for it:
+	 * <UL>
+	 * <LI>above the high watermark, the handler stops reading from the client
+	 * <LI>above the hard cap for longer than the grace period, the client is
+	 * disconnected
+	 * </UL>
+	 * 
+	 * @throws IOException
+	 *             if the connection has been closed, or the outgoing data of
+	 *             all the connections reached the global cap. In both cases,
+	 *             the data is dropped - and a client whose encoding depends
+	 *             on the messages before it is disconnected, as it cannot
+	 *             skip a message.
+	 */
+	public void addOutData(ByteBuffer buf) throws IOException {
+		enqueue(new OutboundBuffer(buf, null));
+	}
+
+	private void enqueue(OutboundBuffer out) throws IOException {
+		int size = out.getBuffer().remaining();
+		if (_closed.get()) {
+			out.release(_data.getBufferPool());
+			throw new IOException("the connection to the client has been closed");
+		}
+		if (!_data.getOutboundBudget().tryReserve(size)) {
+			out.release(_data.getBufferPool());
+			if (_outBytes.get() >= _data.getConfig().getOutHighWatermark()) {
+				// this client is part of the problem
+				evict("global outbound memory cap reached");
+			} else if (_tokenizer.getFormat() instanceof MessageTokenizer) {
+				// the encoding depends on the messages before it (e.g. a
+				// compression stream), so the client cannot decode the
+				// messages after the dropped one
+				evict("global outbound memory cap reached, and a message of its stream was dropped");
+			}
+			throw new IOException("the global outbound memory cap has been reached");
+		}
+
+		long queued = _outBytes.addAndGet(size);
+		_outData.add(out);
+		_data.getMetrics().outboundBuffers(1);
+		_queuedSince.compareAndSet(0, System.nanoTime());
+		if (_closed.get()) {
+			// closed while we were adding. make sure nothing stays accounted.
+			dropOutData();
+			return;
+		}
+
+		ReactorConfig config = _data.getConfig();
+		if (queued > config.getOutHighWatermark()) {
+			_readPaused = true;
+		}
+		if (queued > config.getOutHardCap()) {
+			long now = System.nanoTime();
+			if (_overHardCapSince == 0) {
+				// the selector loop arms the timer that ends the grace period
+				_overHardCapSince = now;
+			} else if (now - _overHardCapSince > config.getSlowConsumerGraceMillis() * 1000000L) {
+				evict("slow consumer");
+			}
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Encodes the message into a pooled buffer, and queues it to be sent to
+	 * the client
+	 */
+	public void send(T msg) throws IOException {
+		synchronized (_sendLock) {
+			encodeAndQueue(msg);
+		}
+	}
+
+	private void encodeAndQueue(T msg) throws IOException {
+		BufferPool pool = _data.getBufferPool();
+		for (int size = BufferPool.MIN_SIZE; size <= BufferPool.MAX_SIZE; size = BufferPool.largerSize(size)) {
+			ByteBuffer buf = pool.acquire(size);
+			if (_tokenizer.encodeMessage(msg, buf)) {
+				buf.flip();
+				addOutData(buf);
+				return;
+			}
+			pool.release(buf);
+			if (size == BufferPool.MAX_SIZE) {
+				break;
+			}
+		}
+		// too large for the pool
+		addOutData(_tokenizer.getBytesForMessage(msg));
+	}
+
+	/**
+	 * Queues a message that is sent to other connections as well. The message
+	 * is encoded once for all the connections with the same wire format, and
+	 * this connection sends a view of the shared bytes.
+	 */
+	public void sendBroadcast(BroadcastMessage<T> msg) throws IOException {
+		synchronized (_sendLock) {
+			SharedBuffer shared;
+			try {
+				shared = msg.getEncoding(_tokenizer.getFormat(), m -> encodeShared(m));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			enqueue(new OutboundBuffer(shared.retain(), shared));
+		}
+	}
+
+	private SharedBuffer encodeShared(T msg) {
+		BufferPool pool = _data.getBufferPool();
+		try {
+			for (int size = BufferPool.MIN_SIZE; size <= BufferPool.MAX_SIZE; size = BufferPool.largerSize(size)) {
+				ByteBuffer buf = pool.acquire(size);
+				if (_tokenizer.encodeMessage(msg, buf)) {
+					buf.flip();
+					return new SharedBuffer(buf, pool);
+				}
+				pool.release(buf);
+				if (size == BufferPool.MAX_SIZE) {
+					break;
+				}
+			}
+			// too large for the pool
+			return new SharedBuffer(_tokenizer.getBytesForMessage(msg), pool);
+		} catch (CharacterCodingException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
-	private void closeConnection() {
+	/**
+	 * Closes the connection, and drops the data that was not sent
+	 * 
+	 * @return true if the connection was closed by this call, false if it had
+	 *         already been closed
+	 */
+	private boolean closeConnection() {
+		if (!_closed.compareAndSet(false, true)) {
+			return false;
+		}
+		if (_idleTimer != null) {
+			_data.getTimingWheel().cancel(_idleTimer);
+		}
+		if (_resumeTimer != null) {
+			_data.getTimingWheel().cancel(_resumeTimer);
+		}
+		if (_hardCapTimer != null) {
+			_data.getTimingWheel().cancel(_hardCapTimer);
+		}
 		// remove from the selector.
 		_skey.cancel();
 		try {
@@ -75,15 +299,118 @@ public class ConnectionHandler<T> {
 		} catch (IOException ignored) {
 			ignored = null;
 		}
+		_data.getConnectionLimiter().connectionClosed();
+		_data.getMetrics().getConnectionsClosed().increment();
+		_tokenizer.close();
+		dropOutData();
+		return true;
+	}
+
+	/**
+	 * Closes the connection, and tells the protocol that the connection
+	 * terminated
+	 */
+	private void terminate() {
+		if (closeConnection()) {
+			_protocol.connectionTerminated();
+		}
+	}
+
+	/**
+	 * Marks the client to be disconnected, e.g. as a slow consumer. The
+	 * selector loop disconnects it once it applies the handler's interest ops.
+	 */
+	void evict(String reason) {
+		if (!_evicted) {
+			_evicted = true;
+			logger.info("disconnecting client on " + _sChannel.socket().getRemoteSocketAddress() + ": " + reason);
+			updateInterestOps();
+		}
+	}
+
+	private void dropOutData() {
+		OutboundBuffer out;
+		while ((out = _outData.poll()) != null) {
+			long size = out.getBuffer().remaining();
+			_outBytes.addAndGet(-size);
+			_data.getOutboundBudget().release(size);
+			_data.getMetrics().outboundBuffers(-1);
+			out.release(_data.getBufferPool());
+		}
+	}
+
+	/**
+	 * Arms the idle timer of the connection, to fire when the connection has
+	 * been idle long enough to need a heartbeat or to be disconnected. Does
+	 * nothing if both are disabled. Called only by the selector loop.
+	 */
+	private void scheduleIdleCheck() {
+		ReactorConfig config = _data.getConfig();
+		long idleMillis = (System.nanoTime() - _lastReadTime) / 1000000L;
+		long delay = Long.MAX_VALUE;
+		if (config.getIdleTimeoutMillis() > 0) {
+			delay = config.getIdleTimeoutMillis() - idleMillis;
+		}
+		if (config.getHeartbeatMillis() > 0 && !_heartbeatSent) {
+			delay = Math.min(delay, config.getHeartbeatMillis() - idleMillis);
+		}
+		if (delay != Long.MAX_VALUE) {
+			_idleTimer = _data.getTimingWheel().schedule(() -> checkIdle(), Math.max(0, delay));
+		}
+	}
+
+	/**
+	 * Runs when the idle timer fires: disconnects the client if it has been
+	 * idle for longer than the idle timeout, or asks the protocol for a
+	 * heartbeat. The reads since the timer was armed just postpone it.
+	 */
+	private void checkIdle() {
+		if (_closed.get()) {
+			return;
+		}
+		ReactorConfig config = _data.getConfig();
+		long idleMillis = (System.nanoTime() - _lastReadTime) / 1000000L;
+		if (config.getIdleTimeoutMillis() > 0 && idleMillis >= config.getIdleTimeoutMillis()) {
+			logger.info("disconnecting client on " + _sChannel.socket().getRemoteSocketAddress() + ": idle for "
+					+ idleMillis + "ms");
+			terminate();
+			return;
+		}
+		if (config.getHeartbeatMillis() > 0 && !_heartbeatSent && idleMillis >= config.getHeartbeatMillis()) {
+			_heartbeatSent = true;
+			_task.connectionIdle();
+		}
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * Adapts the size of the next read buffer: grows it when a read fills the
+	 * whole buffer, and shrinks it after two reads in a row that used less
+	 * than a quarter of it.
+	 */
+	private void adaptReadSize(int numBytesRead, int capacity) {
+		if (numBytesRead == capacity) {
+			_readSize = BufferPool.largerSize(capacity);
+			_smallReads = 0;
+		} else if (numBytesRead < capacity / 4) {
+			_smallReads++;
+			if (_smallReads == 2) {
+				_readSize = BufferPool.smallerSize(capacity);
+				_smallReads = 0;
+			}
+		} else {
+			_smallReads = 0;
+		}
 	}
 
 	/**
 	 * Reads incoming data from the client:
 	 * <UL>
 	 * <LI>Reads some bytes from the SocketChannel
-	 * <LI>create a protocolTask, to process this data, possibly generating an
-	 * answer
-	 * <LI>Inserts the Task to the ThreadPool
+	 * <LI>hands the data to the connection's protocolTask, to process it,
+	 * possibly generating an answer
+	 * <LI>The Task inserts itself to the ThreadPool, unless it is already
+	 * there
 	 * </UL>
 	 * 
 	 * @throws
@@ -98,106 +425,257 @@ public class ConnectionHandler<T> {
 			return;
 		}
 
-		SocketAddress address = _sChannel.socket().getRemoteSocketAddress();
-		logger.info("Reading from " + address);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Reading from " + _sChannel.socket().getRemoteSocketAddress());
+		}
 
-		ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer buf = _data.getBufferPool().acquire(_readSize);
 		int numBytesRead = 0;
 		try {
 			numBytesRead = _sChannel.read(buf);
 		} catch (IOException e) {
 			numBytesRead = -1;
 		}
+		if (numBytesRead <= 0) {
+			_data.getBufferPool().release(buf);
+		}
 		// is the channel closed??
 		if (numBytesRead == -1) {
 			// No more bytes can be read from the channel
-			logger.info("client on " + address + " has disconnected");
-			closeConnection();
-			// tell the protocol that the connection terminated.
-			_protocol.connectionTerminated();
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("client on " + _sChannel.socket().getRemoteSocketAddress() + " has disconnected");
+			}
+			// close, and tell the protocol that the connection terminated.
+			terminate();
+			return;
+		}
+
+		if (numBytesRead == 0) {
 			return;
 		}
+		_data.getMetrics().getBytesIn().add(numBytesRead);
+		adaptReadSize(numBytesRead, buf.capacity());
+		_lastReadTime = System.nanoTime();
+		if (_heartbeatSent) {
+			_heartbeatSent = false;
+			if (!_idleTimer.isPending()) {
+				scheduleIdleCheck();
+			}
+		}
 
-		//add the buffer to the protocol task
+		//add the buffer to the protocol task, which schedules itself if it is
+		//idle. the buffer is released once the tokenizer has consumed it
 		buf.flip();
 		_task.addBytes(buf);
-		// add the protocol task to the reactor
-		_data.getExecutor().execute(_task);
 	}
 
 	/**
 	 * attempts to send data to the client<br/>
-	 * if all the data has been successfully sent, the ConnectionHandler will
-	 * automatically switch to read only mode, otherwise it'll stay in it's
-	 * current mode (which is read / write).
+	 * the pending buffers are sent together, using a single gathering write,
+	 * up to the configured write budget. if all the data has been successfully
+	 * sent, the ConnectionHandler will automatically stop waiting for its
+	 * socket to become writable.
 	 * 
 	 * @throws IOException
 	 *             if the write operation fails
 	 * @throws ClosedChannelException
 	 *             if the channel have been closed while registering to the Selector
 	 */
-	public synchronized void write() {
-		if (_outData.size() == 0) {
-			// if nothing left in the output string, go back to read mode
-			switchToReadOnlyMode();
-			return;
+	public void write() {
+		int count = 0;
+		long budget = _data.getConfig().getWriteBudget();
+		Iterator<OutboundBuffer> it = _outData.iterator();
+		while (count < MAX_GATHERED_BUFFERS && budget > 0 && it.hasNext()) {
+			ByteBuffer buf = it.next().getBuffer();
+			_gatheredBuffers[count++] = buf;
+			budget -= buf.remaining();
 		}
-		// if there is something to send
-		ByteBuffer buf = _outData.remove(0);
-		if (buf.remaining() != 0) {
+
+		if (count > 0) {
+			OutboundFlushEvent event = new OutboundFlushEvent();
+			event.begin();
+			long written;
 			try {
-				_sChannel.write(buf);
+				written = _sChannel.write(_gatheredBuffers, 0, count);
 			} catch (IOException e) {
-				// this should never happen.
-				e.printStackTrace();
+				// the client is gone
+				Arrays.fill(_gatheredBuffers, 0, count, null);
+				terminate();
+				return;
+			}
+			ReactorMetrics metrics = _data.getMetrics();
+			metrics.getBytesOut().add(written);
+			_data.getOutboundBudget().release(written);
+			long queued = _outBytes.addAndGet(-written);
+			ReactorConfig config = _data.getConfig();
+			if (queued <= config.getOutHardCap()) {
+				_overHardCapSince = 0;
 			}
-			// check if the buffer contains more data
-			if (buf.remaining() != 0) {
-				_outData.add(0, buf);
+			if (_readPaused && queued <= config.getOutLowWatermark()) {
+				// the client caught up
+				_readPaused = false;
+			}
+
+			// the buffers that were sent completely go back to the pool. a
+			// partially sent buffer stays at the head of the queue.
+			boolean partial = false;
+			for (int i = 0; i < count; i++) {
+				ByteBuffer buf = _gatheredBuffers[i];
+				_gatheredBuffers[i] = null;
+				if (buf.remaining() == 0) {
+					_outData.poll().release(_data.getBufferPool());
+					metrics.outboundBuffers(-1);
+				} else {
+					partial = true;
+				}
+			}
+
+			if (_outData.isEmpty()) {
+				long since = _queuedSince.getAndSet(0);
+				if (since != 0) {
+					metrics.getQueueToFlush().recordNanos(System.nanoTime() - since);
+				}
+			}
+
+			event.end();
+			if (event.shouldCommit()) {
+				event.buffers = count;
+				event.bytesWritten = written;
+				event.partial = partial;
+				event.bytesQueued = queued;
+				event.commit();
 			}
 		}
+
 		// check if the protocol indicated close.
-		if (_protocol.shouldClose()) {
-			switchToWriteOnlyMode();
-			if (buf.remaining() == 0) {
-				closeConnection();
-				SocketAddress address = _sChannel.socket().getRemoteSocketAddress();
-				logger.info("disconnecting client on " + address);
+		if (_outData.isEmpty() && _protocol.shouldClose()) {
+			closeConnection();
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("disconnecting client on " + _sChannel.socket().getRemoteSocketAddress());
 			}
+			return;
 		}
+		// if nothing left in the output queue, go back to read mode
+		updateInterestOps();
 	}
 
 	/**
-	 * switches the handler to read / write TODO Auto-generated catch blockmode
+	 * Stops reading from the client for the given time, e.g. while it is over
+	 * a rate limit. The data already read is still processed. A later call
+	 * extends the suspension, but never shortens it.
 	 * 
-	 * @throws ClosedChannelException
-	 *             if the channel is closed
+	 * @return true if the reads are suspended, false if the connection is
+	 *         closing, and there is nothing to suspend
 	 */
-	public void switchToReadWriteMode() {
-		_skey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		_data.getSelector().wakeup();
+	public boolean suspendReading(long millis) {
+		if (_closed.get() || _evicted || _protocol.shouldClose()) {
+			return false;
+		}
+		long until = System.nanoTime() + millis * 1000000L;
+		long current = _readSuspendedUntil;
+		if (current == 0 || until - current > 0) {
+			_readSuspendedUntil = until;
+		}
+		updateInterestOps();
+		return true;
 	}
 
 	/**
-	 * switches the handler to read only mode
-	 * 
-	 * @throws ClosedChannelException
-	 *             if the channel is closed
+	 * Brings the interest ops of the handler up to date with its state. When
+	 * called by a worker thread, the change is queued, and applied by the
+	 * selector loop.
 	 */
-	public void switchToReadOnlyMode() {
-		_skey.interestOps(SelectionKey.OP_READ);
-		_data.getSelector().wakeup();
+	public void updateInterestOps() {
+		InterestOpsQueue<T> queue = _data.getInterestOpsQueue();
+		if (queue.inLoop()) {
+			applyInterestOps();
+		} else if (_interestOpsPosted.compareAndSet(false, true)) {
+			queue.post(this);
+		} else {
+			queue.coalesced();
+		}
 	}
 
 	/**
-	 * switches the handler to write only mode
-	 * 
-	 * @throws ClosedChannelException
-	 *             if the channel is closed
+	 * Sets the interest ops of the handler according to its state:
+	 * <UL>
+	 * <LI>read, unless the protocol is closing, the client does not read the
+	 * data sent to it fast enough, or the reads are suspended (in which case
+	 * a timer resumes them)
+	 * <LI>write, if there is pending data to send, or the protocol is closing
+	 * (so that the connection is closed once the data is sent)
+	 * </UL>
+	 * A slow consumer is disconnected instead, and a client above the hard cap
+	 * gets a timer that disconnects it if it is still above the cap when the
+	 * grace period ends. Called only by the selector loop.
+	 */
+	void applyInterestOps() {
+		// cleared before the state is examined, so that a later change is
+		// posted again
+		_interestOpsPosted.set(false);
+		if (_evicted) {
+			terminate();
+			return;
+		}
+		if (!_skey.isValid()) {
+			return;
+		}
+		long overSince = _overHardCapSince;
+		if (overSince != 0 && (_hardCapTimer == null || !_hardCapTimer.isPending())) {
+			_hardCapTimer = _data.getTimingWheel().schedule(() -> checkHardCap(),
+					hardCapGraceLeftMillis(overSince));
+		}
+
+		boolean suspended = false;
+		long until = _readSuspendedUntil;
+		if (until != 0) {
+			long remaining = until - System.nanoTime();
+			if (remaining > 0) {
+				suspended = true;
+				if (_resumeTimer == null || !_resumeTimer.isPending()) {
+					_resumeTimer = _data.getTimingWheel().schedule(() -> applyInterestOps(),
+							(remaining + 999999L) / 1000000L);
+				}
+			} else {
+				_readSuspendedUntil = 0;
+			}
+		}
+
+		int ops = 0;
+		if (!_protocol.shouldClose() && !_readPaused && !suspended) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (!_outData.isEmpty() || _protocol.shouldClose()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		_skey.interestOps(ops);
+	}
+
+	/**
+	 * Runs when the hard cap timer fires: disconnects the client if it has
+	 * been above the hard cap for the whole grace period, or waits for the
+	 * rest of it if it went below the cap and above it again meanwhile.
+	 * Called only by the selector loop.
+	 */
+	private void checkHardCap() {
+		long overSince = _overHardCapSince;
+		if (_closed.get() || overSince == 0) {
+			return;
+		}
+		if (hardCapGraceLeftMillis(overSince) == 0) {
+			evict("slow consumer");
+		} else {
+			applyInterestOps();
+		}
+	}
+
+	/**
+	 * @return the time left until the grace period above the hard cap ends, in
+	 *         milliseconds, rounded up
 	 */
-	public void switchToWriteOnlyMode() {
-		_skey.interestOps(SelectionKey.OP_WRITE);
-		_data.getSelector().wakeup();
+	private long hardCapGraceLeftMillis(long overSince) {
+		long left = overSince + _data.getConfig().getSlowConsumerGraceMillis() * 1000000L - System.nanoTime();
+		return left <= 0 ? 0 : (left + 999999L) / 1000000L;
 	}
 
 }
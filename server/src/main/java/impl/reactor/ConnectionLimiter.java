@@ -0,0 +1,94 @@
+package impl.reactor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for new connections, shared by all the acceptors of the
+ * Reactor: caps the number of open connections, and the rate at which new
+ * ones are accepted (using a token bucket holding up to one second's worth of
+ * connections).
+ */
+public class ConnectionLimiter {
+
+	private final int _maxConnections;
+
+	private final int _acceptRate;
+
+	private final AtomicInteger _connections = new AtomicInteger();
+
+	private final AtomicLong _rejected = new AtomicLong();
+
+	private double _tokens;
+
+	private long _lastRefill;
+
+	/**
+	 * @param maxConnections
+	 *            the maximal number of open connections, or 0 for no limit
+	 * @param acceptRate
+	 *            the maximal number of connections accepted per second, or 0
+	 *            for no limit
+	 */
+	public ConnectionLimiter(int maxConnections, int acceptRate) {
+		_maxConnections = maxConnections;
+		_acceptRate = acceptRate;
+		_tokens = acceptRate;
+		_lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Decides whether a new connection may be served. An admitted connection
+	 * must be reported by {@link #connectionClosed()} once it closes.
+	 *
+	 * @return true if the connection is admitted, false if it should be
+	 *         rejected
+	 */
+	public boolean tryAdmit() {
+		if (_maxConnections > 0 && _connections.incrementAndGet() > _maxConnections) {
+			_connections.decrementAndGet();
+			_rejected.incrementAndGet();
+			return false;
+		}
+		if (_acceptRate > 0 && !takeToken()) {
+			if (_maxConnections > 0) {
+				_connections.decrementAndGet();
+			}
+			_rejected.incrementAndGet();
+			return false;
+		}
+		if (_maxConnections <= 0) {
+			_connections.incrementAndGet();
+		}
+		return true;
+	}
+
+	public void connectionClosed() {
+		_connections.decrementAndGet();
+	}
+
+	/**
+	 * @return the number of connections currently open
+	 */
+	public int getConnections() {
+		return _connections.get();
+	}
+
+	/**
+	 * @return the number of connections rejected so far
+	 */
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	private synchronized boolean takeToken() {
+		long now = System.nanoTime();
+		_tokens = Math.min(_acceptRate, _tokens + (now - _lastRefill) * _acceptRate / 1e9);
+		_lastRefill = now;
+		if (_tokens < 1) {
+			return false;
+		}
+		_tokens--;
+		return true;
+	}
+}
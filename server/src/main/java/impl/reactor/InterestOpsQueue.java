@@ -0,0 +1,88 @@
+package impl.reactor;
+
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the ConnectionHandlers whose interest ops should change, so that
+ * worker threads never touch a SelectionKey themselves.<br/>
+ * The selector loop applies the pending changes once per iteration, and the
+ * Selector is woken up at most once until the loop gets to them. Every change
+ * that did not cost a wakeup is counted, so the saving can be measured.
+ */
+public class InterestOpsQueue<T> {
+
+	private final Selector _selector;
+
+	private final Queue<ConnectionHandler<T>> _handlers = new ConcurrentLinkedQueue<ConnectionHandler<T>>();
+
+	private final AtomicBoolean _wakeupPending = new AtomicBoolean(false);
+
+	private final AtomicLong _wakeupsSaved = new AtomicLong();
+
+	private volatile Thread _loopThread = null;
+
+	public InterestOpsQueue(Selector selector) {
+		_selector = selector;
+	}
+
+	/**
+	 * Sets the thread of the selector loop. Changes requested by that thread
+	 * are applied immediately.
+	 */
+	public void setLoopThread(Thread loopThread) {
+		_loopThread = loopThread;
+	}
+
+	/**
+	 * @return true if the calling thread is the thread of the selector loop
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == _loopThread;
+	}
+
+	/**
+	 * Queues a handler whose interest ops should be updated, and wakes the
+	 * Selector up unless a wakeup is already in flight
+	 */
+	public void post(ConnectionHandler<T> handler) {
+		_handlers.add(handler);
+		if (_wakeupPending.compareAndSet(false, true)) {
+			_selector.wakeup();
+		} else {
+			_wakeupsSaved.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a change that was merged into one that is already queued
+	 */
+	public void coalesced() {
+		_wakeupsSaved.incrementAndGet();
+	}
+
+	/**
+	 * Applies all the queued changes. Called by the selector loop, once per
+	 * iteration.
+	 */
+	public void applyPending() {
+		// from now on, a new change needs a new wakeup
+		_wakeupPending.set(false);
+
+		ConnectionHandler<T> handler;
+		while ((handler = _handlers.poll()) != null) {
+			handler.applyInterestOps();
+		}
+	}
+
+	/**
+	 * @return the number of interest-op changes that did not cost a wakeup of
+	 *         the Selector
+	 */
+	public long getWakeupsSaved() {
+		return _wakeupsSaved.get();
+	}
+}
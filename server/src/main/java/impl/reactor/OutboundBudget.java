@@ -0,0 +1,54 @@
+package impl.reactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the outgoing data that is queued, but not yet sent, over all
+ * the connections of the Reactor, and enforces a cap on its total size.
+ */
+public class OutboundBudget {
+
+	private final long _cap;
+
+	private final AtomicLong _queuedBytes = new AtomicLong();
+
+	/**
+	 * @param cap
+	 *            the maximal number of bytes that may be queued over all the
+	 *            connections
+	 */
+	public OutboundBudget(long cap) {
+		_cap = cap;
+	}
+
+	/**
+	 * Reserves room for the given number of bytes.
+	 *
+	 * @return true if the bytes fit under the cap, false otherwise (in which
+	 *         case nothing is reserved)
+	 */
+	public boolean tryReserve(long bytes) {
+		long queued;
+		do {
+			queued = _queuedBytes.get();
+			if (queued + bytes > _cap) {
+				return false;
+			}
+		} while (!_queuedBytes.compareAndSet(queued, queued + bytes));
+		return true;
+	}
+
+	/**
+	 * Returns bytes that were sent or dropped to the budget
+	 */
+	public void release(long bytes) {
+		_queuedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return the number of bytes currently queued over all the connections
+	 */
+	public long getQueuedBytes() {
+		return _queuedBytes.get();
+	}
+}
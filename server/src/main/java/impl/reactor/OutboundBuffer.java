@@ -0,0 +1,36 @@
+package impl.reactor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An entry of the outgoing queue of a connection: a buffer to send, and what
+ * to do with it once it was sent or dropped
+ */
+final class OutboundBuffer {
+
+	private final ByteBuffer _buf;
+
+	/** the shared buffer the buffer is a view of, or null if it is owned by the connection */
+	private final SharedBuffer _shared;
+
+	OutboundBuffer(ByteBuffer buf, SharedBuffer shared) {
+		_buf = buf;
+		_shared = shared;
+	}
+
+	ByteBuffer getBuffer() {
+		return _buf;
+	}
+
+	/**
+	 * Returns the buffer to the pool, or releases the connection's reference
+	 * to the shared buffer
+	 */
+	void release(BufferPool pool) {
+		if (_shared != null) {
+			_shared.release();
+		} else {
+			pool.release(_buf);
+		}
+	}
+}
@@ -2,48 +2,200 @@ package impl.reactor;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.charset.CharacterCodingException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import impl.reactor.events.ExecutorQueueWaitEvent;
+import impl.reactor.events.ReadBatchEvent;
 import protocol.*;
 import tokenizer.*;
 
 /**
  * This class supplies some data to the protocol, which then processes the data,
- * possibly returning a reply. This class is implemented as an executor task.
- * 
+ * possibly returning a reply. This class is implemented as an executor task.<br/>
+ * Every connection has a single task, which acts as the connection's mailbox:
+ * the task is submitted to the executor only when data arrives while it is
+ * idle, and it then processes all the pending data before it yields. A
+ * connection is therefore served by one thread at a time, in order, and no
+ * thread ever waits for another.<br/>
+ * If the protocol fails on a message, the connection is closed, and the data
+ * it still has is dropped.
  */
 public class ProtocolTask<T> implements Runnable {
 
-	private final ServerProtocol<T> _protocol;
+	private final AsyncServerProtocol<T> _protocol;
 	private final MessageTokenizer<T> _tokenizer;
+	private final ReactorData<T> _data;
+	private final ProtocolCallback<T> _callback;
 	private final ConnectionHandler<T> _handler;
 
-	public ProtocolTask(final AsyncServerProtocol<T> protocol, final MessageTokenizer<T> tokenizer, final ConnectionHandler<T> h) {
+	/**
+	 * the buffers read from the socket, waiting to be handed to the tokenizer
+	 */
+	private final Queue<ByteBuffer> _buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * true from the moment the task is submitted to the executor, until it
+	 * finds the mailbox empty
+	 */
+	private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+
+	/**
+	 * the time (System.nanoTime) the oldest buffer in the mailbox was added,
+	 * or 0 if the mailbox is empty
+	 */
+	private final AtomicLong _pendingSince = new AtomicLong();
+
+	/** true when the protocol should be told that the connection is idle */
+	private final AtomicBoolean _idle = new AtomicBoolean(false);
+
+	/**
+	 * spans the wait of the task in the executor's queue. set before the task
+	 * is submitted, and ended by the worker thread that runs it
+	 */
+	private ExecutorQueueWaitEvent _queueWait;
+
+	/** true once the protocol failed. only touched by the running task */
+	private boolean _failed = false;
+
+	private static final Logger logger = Logger.getLogger("edu.spl.reactor");
+
+	public ProtocolTask(final AsyncServerProtocol<T> protocol, final MessageTokenizer<T> tokenizer, final ConnectionHandler<T> h,
+			final ReactorData<T> data) {
 		this._protocol = protocol;
 		this._tokenizer = tokenizer;
+		this._data = data;
 		this._handler = h;
+		this._callback = new ProtocolCallback<T>() {
+			@Override
+			public void sendMessage(T msg) throws IOException {
+				h.send(msg);
+			}
+
+			@Override
+			public void sendBroadcast(BroadcastMessage<T> msg) throws IOException {
+				h.sendBroadcast(msg);
+			}
+
+			@Override
+			public boolean suspendReading(long millis) {
+				return h.suspendReading(millis);
+			}
+		};
 	}
 
-	// we synchronize on ourselves, in case we are executed by several threads
-	// from the thread pool.
-	public synchronized void run() {
-	  final ProtocolCallback<T> callback = new ProtocolCallback<T>() {
-		@Override
-		public void sendMessage(T msg) throws IOException {
+	public void run() {
+		_queueWait.commit();
+		_queueWait = null;
+		do {
 			try {
-				_handler.addOutData(_tokenizer.getBytesForMessage(msg));
-			} catch (CharacterCodingException e) { e.printStackTrace(); }
+				processPendingData();
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "processing the data of a client failed", e);
+				_failed = true;
+				_handler.evict("processing failed: " + e);
+			}
+			_scheduled.set(false);
+			// data that arrived after the last check is ours to process, unless
+			// its arrival already scheduled the task again
+		} while ((!_buffers.isEmpty() || _idle.get()) && _scheduled.compareAndSet(false, true));
+	}
+
+	private void processPendingData() {
+		if (_failed) {
+			dropPendingData();
+			return;
+		}
+		if (_idle.getAndSet(false)) {
+			this._protocol.connectionIdle(_callback);
+		}
+
+		ReactorMetrics metrics = _data.getMetrics();
+		long since = _pendingSince.getAndSet(0);
+		if (since != 0) {
+			metrics.getReadToProcess().recordNanos(System.nanoTime() - since);
+		}
+
+		ReadBatchEvent event = new ReadBatchEvent();
+		event.begin();
+		int buffers = 0;
+		long bytesRead = 0;
+		int messages = 0;
+
+		ByteBuffer buf;
+		while ((buf = _buffers.poll()) != null) {
+			buffers++;
+			bytesRead += buf.remaining();
+			// hand the bytes to the tokenizer, which consumes them, so the
+			// buffer can go back to the pool.
+			_tokenizer.addBytes(buf);
+			_data.getBufferPool().release(buf);
+			if (_tokenizer.shouldClose()) {
+				// the client broke the framing rules. the tokenizer ignores
+				// anything it sends from now on
+				_handler.evict("invalid input, " + _tokenizer.getRejectedBytes() + " bytes rejected");
+			}
+
+			// go over all complete messages and process them.
+			while (_tokenizer.hasMessage()) {
+				T msg = _tokenizer.nextMessage();
+				messages++;
+				long start = System.nanoTime();
+				this._protocol.processMessage(msg, _callback);
+				metrics.getProcess().recordNanos(System.nanoTime() - start);
+			}
+		}
+		metrics.getMessagesIn().add(messages);
+
+		event.end();
+		if (buffers > 0 && event.shouldCommit()) {
+			event.buffers = buffers;
+			event.bytesRead = bytesRead;
+			event.messagesDecoded = messages;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Releases the buffers in the mailbox without processing them
+	 */
+	private void dropPendingData() {
+		_idle.set(false);
+		_pendingSince.set(0);
+		ByteBuffer buf;
+		while ((buf = _buffers.poll()) != null) {
+			_data.getBufferPool().release(buf);
 		}
-	  };
-		
-      // go over all complete messages and process them.
-      while (_tokenizer.hasMessage()) {
-         T msg = _tokenizer.nextMessage();
-         this._protocol.processMessage(msg, callback);
-      }
 	}
 
+	/**
+	 * Adds data to the mailbox, and submits the task to the executor if it is
+	 * not already scheduled
+	 */
 	public void addBytes(ByteBuffer b) {
-		_tokenizer.addBytes(b);
+		_pendingSince.compareAndSet(0, System.nanoTime());
+		_buffers.add(b);
+		schedule();
+	}
+
+	/**
+	 * Tells the protocol, through the mailbox, that the connection is idle
+	 */
+	public void connectionIdle() {
+		_idle.set(true);
+		schedule();
+	}
+
+	private void schedule() {
+		if (_scheduled.compareAndSet(false, true)) {
+			ExecutorQueueWaitEvent queueWait = new ExecutorQueueWaitEvent();
+			queueWait.begin();
+			_queueWait = queueWait;
+			_data.getExecutor().execute(this);
+		}
 	}
 }
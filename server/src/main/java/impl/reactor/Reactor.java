@@ -1,27 +1,34 @@
 package impl.reactor;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
+import java.net.SocketOption;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.charset.Charset;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import metrics.MetricsRegistry;
 import protocol.*;
 import protocol.tbgp.TBGPProtocol;
 import protocol.tbgp.TBGPRoom;
 import protocol.tbgp.TBGPServer;
+import protocol.tbgp.TBGPTokenizerFactory;
+import protocol.tbgp.cluster.ClusterNode;
+import protocol.tbgp.cluster.ConsistentHashRing;
+import protocol.tbgp.cluster.LoopbackBus;
 import protocol.tbgp.games.TBGPGame;
 import protocol.tbgp.games.TBGPGameFactory;
 import protocol.tbgp.games.bluffer.Bluffer;
+import protocol.tbgp.state.RoomStateStore;
 import tokenizer.*;
 
 /**
@@ -41,7 +48,13 @@ public class Reactor<T> implements Runnable {
 
     private volatile boolean _shouldRun = true;
 
-    private ReactorData<T> _data;
+    private final ReactorConfig _config;
+
+    private final MetricsRegistry _metrics;
+
+    private volatile ReactorLoop<T> _acceptLoop;
+
+    private volatile List<ReactorLoop<T>> _loops;
 
     /**
      * Creates a new Reactor
@@ -53,22 +66,62 @@ public class Reactor<T> implements Runnable {
      * @throws IOException if some I/O problems arise during connection
      */
     public Reactor(int port, int poolSize, ServerProtocolFactory<T> protocol, TokenizerFactory<T> tokenizer) {
+        this(port, poolSize, protocol, tokenizer, new ReactorConfig());
+    }
+
+    /**
+     * Creates a new Reactor, that records its metrics in the default
+     * MetricsRegistry
+     *
+     * @param poolSize  the number of WorkerThreads to include in the ThreadPool
+     * @param port      the port to bind the Reactor to
+     * @param protocol  the protocol factory to work with
+     * @param tokenizer the tokenizer factory to work with
+     * @param config    the tunable settings of the Reactor
+     */
+    public Reactor(int port, int poolSize, ServerProtocolFactory<T> protocol, TokenizerFactory<T> tokenizer,
+            ReactorConfig config) {
+        this(port, poolSize, protocol, tokenizer, config, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Creates a new Reactor
+     *
+     * @param poolSize  the number of WorkerThreads to include in the ThreadPool
+     * @param port      the port to bind the Reactor to
+     * @param protocol  the protocol factory to work with
+     * @param tokenizer the tokenizer factory to work with
+     * @param config    the tunable settings of the Reactor
+     * @param metrics   the registry to record the metrics of the Reactor in
+     */
+    public Reactor(int port, int poolSize, ServerProtocolFactory<T> protocol, TokenizerFactory<T> tokenizer,
+            ReactorConfig config, MetricsRegistry metrics) {
         _port = port;
         _poolSize = poolSize;
         _protocolFactory = protocol;
         _tokenizerFactory = tokenizer;
+        config.validate();
+        _config = config;
+        _metrics = metrics;
     }
 
     /**
      * Create a non-blocking server socket channel and bind to to the Reactor
      * port
+     *
+     * @param reusePort whether other server sockets may bind to the same port
+     *                  (SO_REUSEPORT), so that the kernel balances the incoming
+     *                  connections between them
      */
-    private ServerSocketChannel createServerSocket(int port)
+    private ServerSocketChannel createServerSocket(int port, boolean reusePort)
             throws IOException {
         try {
             ServerSocketChannel ssChannel = ServerSocketChannel.open();
             ssChannel.configureBlocking(false);
-            ssChannel.socket().bind(new InetSocketAddress(port));
+            if (reusePort) {
+                setReusePort(ssChannel);
+            }
+            ssChannel.socket().bind(new InetSocketAddress(port), _config.getAcceptBacklog());
             return ssChannel;
         } catch (IOException e) {
             logger.info("Port " + port + " is busy");
@@ -76,96 +129,139 @@ public class Reactor<T> implements Runnable {
         }
     }
 
+    /**
+     * Sets SO_REUSEPORT on a server socket. The option is looked up by name,
+     * as it is only known to the JDK since Java 9, and only on some platforms.
+     */
+    @SuppressWarnings("unchecked")
+    private static void setReusePort(ServerSocketChannel ssChannel) throws IOException {
+        for (SocketOption<?> option : ssChannel.supportedOptions()) {
+            if (option.name().equals("SO_REUSEPORT") && option.type() == Boolean.class) {
+                ssChannel.setOption((SocketOption<Boolean>) option, true);
+                return;
+            }
+        }
+        ssChannel.close();
+        throw new IOException("SO_REUSEPORT is not supported on this platform");
+    }
+
     /**
      * Main operation of the Reactor:
      * <UL>
-     * <LI>Uses the <CODE>Selector.select()</CODE> method to find new
-     * requests from clients
-     * <LI>For each request in the selection set:
-     * <UL>
-     * If it is <B>acceptable</B>, use the ConnectionAcceptor to accept it,
-     * create a new ConnectionHandler for it register it to the Selector
-     * <LI>If it is <B>readable</B>, use the ConnectionHandler to read it,
-     * extract messages and insert them to the ThreadPool
+     * <LI>Creates the ThreadPool, and the selector loops that serve the
+     * connections, each on its own thread
+     * <LI>Binds the server socket to a Selector of its own, and runs the
+     * accepting loop on the current thread. Each new connection is handed to
+     * one of the selector loops
      * </UL>
+     * If the configuration asks for no selector loops, the accepting loop
+     * serves the connections as well, using a single Selector.<br/>
+     * If the configuration asks for SO_REUSEPORT listeners, there is no
+     * dedicated accepting loop: each listener is bound to the port on its own,
+     * and is registered to one of the selector loops, which accepts the
+     * connections the kernel assigns to that listener and serves them (or
+     * shares them with the loops that have no listener of their own). The
+     * first loop runs on the current thread.
      */
     public void run() {
         // Create & start the ThreadPool
         ExecutorService executor = Executors.newFixedThreadPool(_poolSize);
-        Selector selector = null;
-        ServerSocketChannel ssChannel = null;
-
+        OutboundBudget outboundBudget = new OutboundBudget(_config.getGlobalOutboundCap());
+        ConnectionLimiter connectionLimiter = new ConnectionLimiter(_config.getMaxConnections(),
+                _config.getAcceptRate());
+        ReactorMetrics metrics = new ReactorMetrics(_metrics, executor, connectionLimiter, outboundBudget);
+        int listeners = _config.getReusePortListeners();
+
+        List<ReactorLoop<T>> loops = new ArrayList<ReactorLoop<T>>();
+        ReactorLoop<T> acceptLoop;
         try {
-            selector = Selector.open();
-            ssChannel = createServerSocket(_port);
+            if (listeners == 0) {
+                acceptLoop = new ReactorLoop<T>(new ReactorData<T>(executor, Selector.open(), _protocolFactory,
+                        _tokenizerFactory, _config, outboundBudget, connectionLimiter, metrics));
+            } else {
+                acceptLoop = null;
+            }
+            if (_config.getLoops() == 0 && acceptLoop != null) {
+                loops.add(acceptLoop);
+            } else {
+                for (int i = 0; i < Math.max(1, _config.getLoops()); i++) {
+                    loops.add(new ReactorLoop<T>(new ReactorData<T>(executor, Selector.open(), _protocolFactory,
+                            _tokenizerFactory, _config, outboundBudget, connectionLimiter, metrics)));
+                }
+            }
         } catch (IOException e) {
-            logger.info("cannot create the selector -- server socket is busy?");
+            logger.info("cannot create the selectors");
+            executor.shutdown();
             return;
         }
+        if (acceptLoop == null) {
+            acceptLoop = loops.get(0);
+        }
 
-        _data = new ReactorData<T>(executor, selector, _protocolFactory, _tokenizerFactory);
-        ConnectionAcceptor<T> connectionAcceptor = new ConnectionAcceptor<T>(ssChannel, _data);
-
-        // Bind the server socket channel to the selector, with the new
-        // acceptor as attachment
-
+        // Bind the server socket channels, each to the Selector of the loop
+        // that accepts its connections, with a new acceptor as attachment
         try {
-            ssChannel.register(selector, SelectionKey.OP_ACCEPT, connectionAcceptor);
-        } catch (ClosedChannelException e) {
-            logger.info("server channel seems to be closed!");
+            if (listeners == 0) {
+                ServerSocketChannel ssChannel = createServerSocket(_port, false);
+                ssChannel.register(acceptLoop.getData().getSelector(), SelectionKey.OP_ACCEPT,
+                        new ConnectionAcceptor<T>(ssChannel, acceptLoop.getData(), loops));
+            } else {
+                for (int j = 0; j < listeners; j++) {
+                    ReactorLoop<T> owner = loops.get(j % loops.size());
+                    // the listener shares its connections with the loops that
+                    // have no listener of their own
+                    List<ReactorLoop<T>> targets = new ArrayList<ReactorLoop<T>>();
+                    for (int i = j; i < loops.size(); i += listeners) {
+                        targets.add(loops.get(i));
+                    }
+                    if (targets.isEmpty()) {
+                        targets.add(owner);
+                    }
+                    ServerSocketChannel ssChannel = createServerSocket(_port, true);
+                    ssChannel.register(owner.getData().getSelector(), SelectionKey.OP_ACCEPT,
+                            new ConnectionAcceptor<T>(ssChannel, owner.getData(), targets));
+                }
+            }
+        } catch (IOException e) {
+            logger.info("cannot create the server socket -- port is busy? " + e.getMessage());
+            executor.shutdown();
             return;
         }
+        _loops = loops;
+        _acceptLoop = acceptLoop;
 
-        while (_shouldRun && selector.isOpen()) {
-            // Wait for an event
-            try {
-                selector.select();
-            } catch (IOException e) {
-                logger.info("trouble with selector: " + e.getMessage());
-                continue;
-            }
-
-            // Get list of selection keys with pending events
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-
-            // Process each key
-            while (it.hasNext()) {
-                // Get the selection key
-                SelectionKey selKey = (SelectionKey) it.next();
-
-                // Remove it from the list to indicate that it is being
-                // processed. it.remove removes the last item returned by next.
-                it.remove();
-
-                // Check if it's a connection request
-                if (selKey.isValid() && selKey.isAcceptable()) {
-                    logger.info("Accepting a connection");
-                    ConnectionAcceptor<T> acceptor = (ConnectionAcceptor<T>) selKey.attachment();
-                    try {
-                        acceptor.accept();
-                    } catch (IOException e) {
-                        logger.info("problem accepting a new connection: "
-                                + e.getMessage());
-                    }
-                    continue;
-                }
-                // Check if a message has been sent
-                if (selKey.isValid() && selKey.isReadable()) {
-                    ConnectionHandler<T> handler = (ConnectionHandler<T>) selKey.attachment();
-                    logger.info("Channel is ready for reading");
-                    handler.read();
-                }
-                // Check if there are messages to send
-                if (selKey.isValid() && selKey.isWritable()) {
-                    ConnectionHandler<T> handler = (ConnectionHandler<T>) selKey.attachment();
-                    logger.info("Channel is ready for writing");
-                    handler.write();
-                }
+        for (int i = 0; i < loops.size(); i++) {
+            ReactorLoop<T> loop = loops.get(i);
+            if (loop != acceptLoop) {
+                new Thread(loop, "reactor-loop-" + i).start();
             }
         }
+
+        acceptLoop.run();
         stopReactor();
     }
 
+    /**
+     * Returns the number of connections currently open
+     *
+     * @return the number of open connections, over all the selector loops
+     */
+    public int getConnections() {
+        ReactorLoop<T> acceptLoop = _acceptLoop;
+        return acceptLoop == null ? 0 : acceptLoop.getData().getConnectionLimiter().getConnections();
+    }
+
+    /**
+     * Returns the number of connections that were rejected by the admission
+     * control
+     *
+     * @return the number of connections rejected so far
+     */
+    public long getRejectedConnections() {
+        ReactorLoop<T> acceptLoop = _acceptLoop;
+        return acceptLoop == null ? 0 : acceptLoop.getData().getConnectionLimiter().getRejected();
+    }
+
     /**
      * Returns the listening port of the Reactor
      *
@@ -175,18 +271,39 @@ public class Reactor<T> implements Runnable {
         return _port;
     }
 
+    /**
+     * Returns the number of interest-op changes, over all the selector loops,
+     * that were coalesced instead of waking a Selector up
+     *
+     * @return the number of selector wakeups saved
+     */
+    public long getWakeupsSaved() {
+        long saved = 0;
+        List<ReactorLoop<T>> loops = _loops;
+        if (loops != null) {
+            for (ReactorLoop<T> loop : loops) {
+                saved += loop.getData().getInterestOpsQueue().getWakeupsSaved();
+            }
+        }
+        return saved;
+    }
+
     /**
      * Stops the Reactor activity, including the Reactor thread and the Worker
      * Threads in the Thread Pool.
      */
     public synchronized void stopReactor() {
-        if (!_shouldRun)
+        if (!_shouldRun || _acceptLoop == null)
             return;
         _shouldRun = false;
-        _data.getSelector().wakeup(); // Force select() to return
-        _data.getExecutor().shutdown();
+        _acceptLoop.stop();
+        for (ReactorLoop<T> loop : _loops) {
+            loop.stop();
+        }
+        ExecutorService executor = _acceptLoop.getData().getExecutor();
+        executor.shutdown();
         try {
-            _data.getExecutor().awaitTermination(2000, TimeUnit.MILLISECONDS);
+            executor.awaitTermination(2000, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             // Someone didn't have patience to wait for the executor pool to
             // close
@@ -198,6 +315,9 @@ public class Reactor<T> implements Runnable {
      * Main program, used for demonstration purposes. Create and run a
      * Reactor-based server for the Echo protocol. Listening port number and
      * number of threads in the thread pool are read from the command line.
+     * With the system property tbgp.cluster.loopbackNodes set to N > 1, a
+     * cluster of N nodes is run in this process, on N consecutive ports, over
+     * a LoopbackBus.
      */
     public static void main(String args[]) {
         if (args.length != 3) {
@@ -210,7 +330,14 @@ public class Reactor<T> implements Runnable {
             int poolSize = Integer.parseInt(args[1]);
             String questionsPath = args[2];
 
-            Reactor<StringMessage> reactor = startTbgpServer(port, poolSize, questionsPath);
+            int nodeCount = Integer.getInteger("tbgp.cluster.loopbackNodes", 1);
+            if (nodeCount > 1) {
+                runLoopbackCluster(port, poolSize, questionsPath, nodeCount);
+                return;
+            }
+
+            Reactor<StringMessage> reactor = startTbgpServer(port, poolSize, questionsPath,
+                    ReactorConfig.fromSystemProperties());
 
             Thread thread = new Thread(reactor);
             thread.start();
@@ -222,6 +349,66 @@ public class Reactor<T> implements Runnable {
     }
 
     public static Reactor<StringMessage> startTbgpServer(int port, int poolSize, String questionsPath) {
+        return startTbgpServer(port, poolSize, questionsPath, new ReactorConfig());
+    }
+
+    /**
+     * Runs the nodes of a cluster in this process, each with a Reactor of its
+     * own, on consecutive ports from the given one. Every node records its
+     * metrics in a registry of its own, which STATS reports, and which is
+     * exposed as the MBean tbgp-&lt;node id&gt;. The traffic of the bus is
+     * reported by every node.
+     */
+    private static void runLoopbackCluster(int port, int poolSize, String questionsPath, int nodeCount)
+            throws InterruptedException {
+        List<String> nodeIds = new ArrayList<String>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodeIds.add("node" + i);
+        }
+        ConsistentHashRing ring = new ConsistentHashRing(nodeIds);
+        LoopbackBus bus = new LoopbackBus();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nodeCount; i++) {
+            MetricsRegistry metrics = new MetricsRegistry();
+            metrics.gauge("tbgp.cluster.batches", bus::getBatches);
+            metrics.gauge("tbgp.cluster.messages", bus::getMessages);
+            TBGPServer server = createTbgpServer(questionsPath, nodeIds.get(i), metrics);
+            ClusterNode.fromSystemProperties(nodeIds.get(i), ring, bus, server);
+            Reactor<StringMessage> reactor = startTbgpServer(port + i, poolSize, server,
+                    ReactorConfig.fromSystemProperties(), metrics, "tbgp-" + nodeIds.get(i));
+            Thread thread = new Thread(reactor);
+            thread.start();
+            threads.add(thread);
+            logger.info("Reactor of " + nodeIds.get(i) + " is ready on port " + reactor.getPort());
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public static Reactor<StringMessage> startTbgpServer(int port, int poolSize, String questionsPath,
+            ReactorConfig config) {
+        return startTbgpServer(port, poolSize, createTbgpServer(questionsPath, null), config);
+    }
+
+    /**
+     * Creates a TBGP server with the games this server supports. With the
+     * system property tbgp.stateDir, the server restores the rooms saved
+     * there, and its restored players have tbgp.restoreGraceMillis (default
+     * 60000) to reconnect.
+     *
+     * @param nodeId the id of the server among the nodes of a cluster in this
+     *        process, which keeps its state in a directory of its own, or null
+     */
+    public static TBGPServer createTbgpServer(String questionsPath, String nodeId) {
+        return createTbgpServer(questionsPath, nodeId, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Like {@link #createTbgpServer(String, String)}, for a server that
+     * records its metrics in the given registry
+     */
+    public static TBGPServer createTbgpServer(String questionsPath, String nodeId, MetricsRegistry metrics) {
     	TBGPGameFactory gameFactory = new TBGPGameFactory() {
     		public TBGPGame create(String gameName, TBGPRoom room) {
     			TBGPGame g = null;
@@ -236,9 +423,42 @@ public class Reactor<T> implements Runnable {
     			supportedGames.add("bluffer");
     			return supportedGames;
     		}
+    		
+    		public TBGPGame restore(String gameName, TBGPRoom room, String state) {
+    			if (gameName.toLowerCase().equals("bluffer")) {
+    				return new Bluffer(questionsPath, room, state);
+    			}
+    			return null;
+    		}
     	};
     	
-    	TBGPServer tbgpServer = new TBGPServer(gameFactory);
+    	TBGPServer tbgpServer = new TBGPServer(gameFactory, metrics);
+    	// with tbgp.stateDir, the rooms of the last run are restored, and kept from now on
+    	RoomStateStore store = RoomStateStore.fromSystemProperties(nodeId);
+    	if (store != null) {
+    		try {
+    			tbgpServer.enablePersistence(store, Long.getLong("tbgp.restoreGraceMillis", 60000));
+    		} catch (IOException e) {
+    			throw new UncheckedIOException("cannot restore the rooms from " + System.getProperty("tbgp.stateDir"), e);
+    		}
+    	}
+    	return tbgpServer;
+    }
+
+    public static Reactor<StringMessage> startTbgpServer(int port, int poolSize, TBGPServer tbgpServer,
+            ReactorConfig config) {
+        return startTbgpServer(port, poolSize, tbgpServer, config, MetricsRegistry.getDefault(), "tbgp");
+    }
+
+    /**
+     * Creates a Reactor that serves the given TBGP server, and records its
+     * metrics in the given registry
+     *
+     * @param mbeanName the name the registry is exposed by, as an MBean
+     */
+    public static Reactor<StringMessage> startTbgpServer(int port, int poolSize, TBGPServer tbgpServer,
+            ReactorConfig config, MetricsRegistry metrics, String mbeanName) {
+    	metrics.registerMBean(mbeanName);
     	ServerProtocolFactory<StringMessage> protocolMaker = new ServerProtocolFactory<StringMessage>() {
     		
             public AsyncServerProtocol<StringMessage> create() {
@@ -247,14 +467,17 @@ public class Reactor<T> implements Runnable {
         };
 
 
-        final Charset charset = Charset.forName("UTF-8");
-        TokenizerFactory<StringMessage> tokenizerMaker = new TokenizerFactory<StringMessage>() {
-            public MessageTokenizer<StringMessage> create() {
-                return new FixedSeparatorMessageTokenizer("\n", charset);
-            }
-        };
+        final FrameLimit frameLimit = FrameLimit.fromSystemProperties();
+        metrics.gauge("tokenizer.rejectedBytes", frameLimit::getRejectedBytes);
+        metrics.gauge("tokenizer.rejectedFrames", frameLimit::getRejectedFrames);
+        // the compression totals are kept for the whole process
+        metrics.gauge("tokenizer.deflate.plainBytesOut", DeflateMessageTokenizer::getPlainBytesOut);
+        metrics.gauge("tokenizer.deflate.compressedBytesOut", DeflateMessageTokenizer::getCompressedBytesOut);
+        // text, unless the client negotiates the binary encoding or compression on connect
+        TokenizerFactory<StringMessage> tokenizerMaker = new TBGPTokenizerFactory(frameLimit);
 
-        Reactor<StringMessage> reactor = new Reactor<StringMessage>(port, poolSize, protocolMaker, tokenizerMaker);
+        Reactor<StringMessage> reactor = new Reactor<StringMessage>(port, poolSize, protocolMaker, tokenizerMaker, config,
+                metrics);
         return reactor;
     }
 }
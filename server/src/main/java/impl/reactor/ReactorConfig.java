@@ -0,0 +1,320 @@
+package impl.reactor;
+
+/**
+ * Tunable settings of the Reactor.<br/>
+ * Every setting has a default, and can be overridden from the command line
+ * using a system property, e.g. <CODE>-Dreactor.loops=4</CODE>.
+ */
+public class ReactorConfig {
+
+	private int _loops = Runtime.getRuntime().availableProcessors();
+
+	private int _poolBytesPerClass = 4 * 1024 * 1024;
+
+	private int _writeBudget = 64 * 1024;
+
+	private int _outHighWatermark = 256 * 1024;
+
+	private int _outLowWatermark = 64 * 1024;
+
+	private int _outHardCap = 4 * 1024 * 1024;
+
+	private long _slowConsumerGraceMillis = 5000;
+
+	private long _globalOutboundCap = 512L * 1024 * 1024;
+
+	private long _timerTickMillis = 100;
+
+	private long _idleTimeoutMillis = 0;
+
+	private long _heartbeatMillis = 0;
+
+	private int _reusePortListeners = 0;
+
+	private int _acceptBacklog = 1024;
+
+	private int _acceptBudget = 64;
+
+	private int _maxConnections = 0;
+
+	private int _acceptRate = 0;
+
+	/**
+	 * @return the number of selector loops that serve the reads and writes of
+	 *         the connections. 0 means that the accepting thread serves them
+	 *         by itself, using a single selector.
+	 */
+	public int getLoops() {
+		return _loops;
+	}
+
+	public void setLoops(int loops) {
+		if (loops < 0) {
+			throw new IllegalArgumentException("loops must not be negative");
+		}
+		_loops = loops;
+	}
+
+	/**
+	 * @return the number of bytes every loop's BufferPool may keep unused in
+	 *         each of its size classes
+	 */
+	public int getPoolBytesPerClass() {
+		return _poolBytesPerClass;
+	}
+
+	public void setPoolBytesPerClass(int poolBytesPerClass) {
+		if (poolBytesPerClass < 0) {
+			throw new IllegalArgumentException("poolBytesPerClass must not be negative");
+		}
+		_poolBytesPerClass = poolBytesPerClass;
+	}
+
+	/**
+	 * @return the number of bytes a connection may send in a single gathering
+	 *         write, once its socket is ready for writing
+	 */
+	public int getWriteBudget() {
+		return _writeBudget;
+	}
+
+	public void setWriteBudget(int writeBudget) {
+		if (writeBudget <= 0) {
+			throw new IllegalArgumentException("writeBudget must be positive");
+		}
+		_writeBudget = writeBudget;
+	}
+
+	/**
+	 * @return the number of queued outgoing bytes above which the Reactor
+	 *         stops reading from a connection
+	 */
+	public int getOutHighWatermark() {
+		return _outHighWatermark;
+	}
+
+	public void setOutHighWatermark(int outHighWatermark) {
+		if (outHighWatermark <= 0) {
+			throw new IllegalArgumentException("outHighWatermark must be positive");
+		}
+		_outHighWatermark = outHighWatermark;
+	}
+
+	/**
+	 * @return the number of queued outgoing bytes below which the Reactor
+	 *         resumes reading from a connection it stopped reading from
+	 */
+	public int getOutLowWatermark() {
+		return _outLowWatermark;
+	}
+
+	public void setOutLowWatermark(int outLowWatermark) {
+		if (outLowWatermark < 0) {
+			throw new IllegalArgumentException("outLowWatermark must not be negative");
+		}
+		_outLowWatermark = outLowWatermark;
+	}
+
+	/**
+	 * @return the number of queued outgoing bytes a connection may hold for
+	 *         no longer than the slow consumer grace period, before it is
+	 *         disconnected
+	 */
+	public int getOutHardCap() {
+		return _outHardCap;
+	}
+
+	public void setOutHardCap(int outHardCap) {
+		if (outHardCap <= 0) {
+			throw new IllegalArgumentException("outHardCap must be positive");
+		}
+		_outHardCap = outHardCap;
+	}
+
+	public long getSlowConsumerGraceMillis() {
+		return _slowConsumerGraceMillis;
+	}
+
+	public void setSlowConsumerGraceMillis(long slowConsumerGraceMillis) {
+		if (slowConsumerGraceMillis < 0) {
+			throw new IllegalArgumentException("slowConsumerGraceMillis must not be negative");
+		}
+		_slowConsumerGraceMillis = slowConsumerGraceMillis;
+	}
+
+	/**
+	 * @return the number of queued outgoing bytes allowed over all the
+	 *         connections together
+	 */
+	public long getGlobalOutboundCap() {
+		return _globalOutboundCap;
+	}
+
+	public void setGlobalOutboundCap(long globalOutboundCap) {
+		if (globalOutboundCap <= 0) {
+			throw new IllegalArgumentException("globalOutboundCap must be positive");
+		}
+		_globalOutboundCap = globalOutboundCap;
+	}
+
+	/**
+	 * @return the resolution of the timers of the selector loops
+	 */
+	public long getTimerTickMillis() {
+		return _timerTickMillis;
+	}
+
+	public void setTimerTickMillis(long timerTickMillis) {
+		if (timerTickMillis <= 0) {
+			throw new IllegalArgumentException("timerTickMillis must be positive");
+		}
+		_timerTickMillis = timerTickMillis;
+	}
+
+	/**
+	 * @return the time a connection may stay without sending anything before
+	 *         it is disconnected, or 0 to never disconnect idle connections
+	 */
+	public long getIdleTimeoutMillis() {
+		return _idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("idleTimeoutMillis must not be negative");
+		}
+		_idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * @return the time a connection may stay without sending anything before
+	 *         the protocol is told it is idle (so it can send a heartbeat), or
+	 *         0 for no heartbeats
+	 */
+	public long getHeartbeatMillis() {
+		return _heartbeatMillis;
+	}
+
+	public void setHeartbeatMillis(long heartbeatMillis) {
+		if (heartbeatMillis < 0) {
+			throw new IllegalArgumentException("heartbeatMillis must not be negative");
+		}
+		_heartbeatMillis = heartbeatMillis;
+	}
+
+	/**
+	 * @return the number of server sockets to open on the port, using
+	 *         SO_REUSEPORT, each served by its own selector loop, which also
+	 *         serves the connections it accepts. 0 opens a single server
+	 *         socket, served by a dedicated accepting loop.
+	 */
+	public int getReusePortListeners() {
+		return _reusePortListeners;
+	}
+
+	public void setReusePortListeners(int reusePortListeners) {
+		if (reusePortListeners < 0) {
+			throw new IllegalArgumentException("reusePortListeners must not be negative");
+		}
+		_reusePortListeners = reusePortListeners;
+	}
+
+	/**
+	 * @return the length of the queue of pending connections of every server
+	 *         socket
+	 */
+	public int getAcceptBacklog() {
+		return _acceptBacklog;
+	}
+
+	public void setAcceptBacklog(int acceptBacklog) {
+		if (acceptBacklog <= 0) {
+			throw new IllegalArgumentException("acceptBacklog must be positive");
+		}
+		_acceptBacklog = acceptBacklog;
+	}
+
+	/**
+	 * @return the maximal number of connections accepted for a single
+	 *         readiness event of a server socket
+	 */
+	public int getAcceptBudget() {
+		return _acceptBudget;
+	}
+
+	public void setAcceptBudget(int acceptBudget) {
+		if (acceptBudget <= 0) {
+			throw new IllegalArgumentException("acceptBudget must be positive");
+		}
+		_acceptBudget = acceptBudget;
+	}
+
+	/**
+	 * @return the maximal number of open connections, or 0 for no limit.
+	 *         Connections beyond it are rejected as soon as they are accepted.
+	 */
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("maxConnections must not be negative");
+		}
+		_maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the maximal number of connections accepted per second, or 0 for
+	 *         no limit. Connections beyond it are rejected as soon as they are
+	 *         accepted.
+	 */
+	public int getAcceptRate() {
+		return _acceptRate;
+	}
+
+	public void setAcceptRate(int acceptRate) {
+		if (acceptRate < 0) {
+			throw new IllegalArgumentException("acceptRate must not be negative");
+		}
+		_acceptRate = acceptRate;
+	}
+
+	/**
+	 * Checks that the settings agree with each other
+	 *
+	 * @throws IllegalArgumentException
+	 *             if they do not
+	 */
+	public void validate() {
+		if (_outLowWatermark > _outHighWatermark || _outHighWatermark > _outHardCap) {
+			throw new IllegalArgumentException("expected outLowWatermark <= outHighWatermark <= outHardCap");
+		}
+	}
+
+	/**
+	 * Creates a configuration from the <CODE>reactor.*</CODE> system
+	 * properties, using the defaults for properties that are not set.
+	 */
+	public static ReactorConfig fromSystemProperties() {
+		ReactorConfig config = new ReactorConfig();
+		config.setLoops(Integer.getInteger("reactor.loops", config.getLoops()));
+		config.setPoolBytesPerClass(Integer.getInteger("reactor.poolBytesPerClass", config.getPoolBytesPerClass()));
+		config.setWriteBudget(Integer.getInteger("reactor.writeBudget", config.getWriteBudget()));
+		config.setOutHighWatermark(Integer.getInteger("reactor.outHighWatermark", config.getOutHighWatermark()));
+		config.setOutLowWatermark(Integer.getInteger("reactor.outLowWatermark", config.getOutLowWatermark()));
+		config.setOutHardCap(Integer.getInteger("reactor.outHardCap", config.getOutHardCap()));
+		config.setSlowConsumerGraceMillis(Long.getLong("reactor.slowConsumerGraceMillis", config.getSlowConsumerGraceMillis()));
+		config.setGlobalOutboundCap(Long.getLong("reactor.globalOutboundCap", config.getGlobalOutboundCap()));
+		config.setTimerTickMillis(Long.getLong("reactor.timerTickMillis", config.getTimerTickMillis()));
+		config.setIdleTimeoutMillis(Long.getLong("reactor.idleTimeoutMillis", config.getIdleTimeoutMillis()));
+		config.setHeartbeatMillis(Long.getLong("reactor.heartbeatMillis", config.getHeartbeatMillis()));
+		config.setReusePortListeners(Integer.getInteger("reactor.reusePortListeners", config.getReusePortListeners()));
+		config.setAcceptBacklog(Integer.getInteger("reactor.acceptBacklog", config.getAcceptBacklog()));
+		config.setAcceptBudget(Integer.getInteger("reactor.acceptBudget", config.getAcceptBudget()));
+		config.setMaxConnections(Integer.getInteger("reactor.maxConnections", config.getMaxConnections()));
+		config.setAcceptRate(Integer.getInteger("reactor.acceptRate", config.getAcceptRate()));
+		config.validate();
+		return config;
+	}
+}
@@ -7,14 +7,24 @@ import protocol.*;
 import tokenizer.*;
 
 /**
- * a simple data structure that hold information about the reactor, including getter methods
+ * a simple data structure that hold information about the reactor, including getter methods.<br/>
+ * Every selector loop of the reactor has its own instance, holding its own Selector.
  */
 public class ReactorData<T> {
 
+    private static final int TIMING_WHEEL_BUCKETS = 512;
+
     private final ExecutorService _executor;
     private final Selector _selector;
     private final ServerProtocolFactory<T> _protocolMaker;
     private final TokenizerFactory<T> _tokenizerMaker;
+    private final ReactorConfig _config;
+    private final BufferPool _bufferPool;
+    private final InterestOpsQueue<T> _interestOpsQueue;
+    private final OutboundBudget _outboundBudget;
+    private final ConnectionLimiter _connectionLimiter;
+    private final ReactorMetrics _metrics;
+    private final TimingWheel _timingWheel;
     
     public ExecutorService getExecutor() {
         return _executor;
@@ -24,11 +34,20 @@ public class ReactorData<T> {
         return _selector;
     }
 
-	public ReactorData(ExecutorService _executor, Selector _selector, ServerProtocolFactory<T> protocol, TokenizerFactory<T> tokenizer) {
+	public ReactorData(ExecutorService _executor, Selector _selector, ServerProtocolFactory<T> protocol, TokenizerFactory<T> tokenizer,
+			ReactorConfig config, OutboundBudget outboundBudget, ConnectionLimiter connectionLimiter,
+			ReactorMetrics metrics) {
 		this._executor = _executor;
 		this._selector = _selector;
 		this._protocolMaker = protocol;
 		this._tokenizerMaker = tokenizer;
+		this._config = config;
+		this._bufferPool = new BufferPool(config.getPoolBytesPerClass());
+		this._interestOpsQueue = new InterestOpsQueue<T>(_selector);
+		this._outboundBudget = outboundBudget;
+		this._connectionLimiter = connectionLimiter;
+		this._metrics = metrics;
+		this._timingWheel = new TimingWheel(config.getTimerTickMillis(), TIMING_WHEEL_BUCKETS);
 	}
 
 	public ServerProtocolFactory<T> getProtocolMaker() {
@@ -39,4 +58,44 @@ public class ReactorData<T> {
 		return _tokenizerMaker;
 	}
 
+	public ReactorConfig getConfig() {
+		return _config;
+	}
+
+	public BufferPool getBufferPool() {
+		return _bufferPool;
+	}
+
+	public InterestOpsQueue<T> getInterestOpsQueue() {
+		return _interestOpsQueue;
+	}
+
+	/**
+	 * @return the budget of outgoing data, shared by all the loops of the reactor
+	 */
+	public OutboundBudget getOutboundBudget() {
+		return _outboundBudget;
+	}
+
+	/**
+	 * @return the admission control of new connections, shared by all the loops of the reactor
+	 */
+	public ConnectionLimiter getConnectionLimiter() {
+		return _connectionLimiter;
+	}
+
+	/**
+	 * @return the metrics of the reactor, shared by all of its loops
+	 */
+	public ReactorMetrics getMetrics() {
+		return _metrics;
+	}
+
+	/**
+	 * @return the timers of the loop. may be used by the loop's thread only
+	 */
+	public TimingWheel getTimingWheel() {
+		return _timingWheel;
+	}
+
 }
@@ -0,0 +1,169 @@
+package impl.reactor;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector event loop of the Reactor.<br/>
+ * Every loop owns a Selector, wrapped by its own ReactorData, and serves the
+ * connections registered to it. New connections are handed to the loop by a
+ * ConnectionAcceptor, and are registered to the Selector by the loop's own
+ * thread, so that the acceptor never blocks on another loop's Selector.
+ */
+public class ReactorLoop<T> implements Runnable {
+
+	private static final Logger logger = Logger.getLogger("edu.spl.reactor");
+
+	private final ReactorData<T> _data;
+
+	private final Queue<SocketChannel> _newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+	private volatile boolean _shouldRun = true;
+
+	/**
+	 * Creates a new ReactorLoop
+	 *
+	 * @param data
+	 *            the ReactorData of this loop, holding its Selector
+	 */
+	public ReactorLoop(ReactorData<T> data) {
+		_data = data;
+	}
+
+	public ReactorData<T> getData() {
+		return _data;
+	}
+
+	/**
+	 * Hands a newly accepted connection to this loop. May be called from any
+	 * thread.
+	 *
+	 * @param sChannel
+	 *            the SocketChannel of the new client
+	 */
+	public void addChannel(SocketChannel sChannel) {
+		_newChannels.add(sChannel);
+		_data.getSelector().wakeup();
+	}
+
+	/**
+	 * Registers the connections that were handed to the loop since the last
+	 * iteration, and creates a ConnectionHandler for each of them
+	 */
+	private void registerNewChannels() {
+		SocketChannel sChannel;
+		while ((sChannel = _newChannels.poll()) != null) {
+			try {
+				sChannel.configureBlocking(false);
+				SelectionKey key = sChannel.register(_data.getSelector(), 0);
+
+				ConnectionHandler<T> handler = ConnectionHandler.create(sChannel, _data, key);
+				handler.updateInterestOps(); // start reading from the client
+			} catch (IOException e) {
+				logger.info("cannot register a new connection: " + e.getMessage());
+				_data.getConnectionLimiter().connectionClosed();
+				try {
+					sChannel.close();
+				} catch (IOException ignored) {
+					ignored = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Main operation of the loop:
+	 * <UL>
+	 * <LI>Uses the <CODE>Selector.select()</CODE> method to find new
+	 * requests from clients, waking up for the ticks of the timers
+	 * <LI>Runs the timers that expired
+	 * <LI>Registers the connections that were handed to the loop, and applies
+	 * the interest-op changes requested by the worker threads
+	 * <LI>For each request in the selection set:
+	 * <UL>
+	 * If it is <B>acceptable</B>, use the ConnectionAcceptor to accept it,
+	 * and hand the new connection to one of the loops
+	 * <LI>If it is <B>readable</B>, use the ConnectionHandler to read it,
+	 * extract messages and insert them to the ThreadPool
+	 * <LI>If it is <B>writable</B>, use the ConnectionHandler to write
+	 * pending data to it
+	 * </UL>
+	 */
+	@SuppressWarnings("unchecked")
+	public void run() {
+		Selector selector = _data.getSelector();
+		TimingWheel timingWheel = _data.getTimingWheel();
+		_data.getInterestOpsQueue().setLoopThread(Thread.currentThread());
+
+		while (_shouldRun && selector.isOpen()) {
+			// Wait for an event, or for the next tick of the timers
+			try {
+				selector.select(timingWheel.millisToNextTick(System.nanoTime()));
+			} catch (IOException e) {
+				logger.info("trouble with selector: " + e.getMessage());
+				continue;
+			}
+
+			timingWheel.advance(System.nanoTime());
+
+			registerNewChannels();
+			_data.getInterestOpsQueue().applyPending();
+
+			// Get list of selection keys with pending events
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+			// Process each key
+			while (it.hasNext()) {
+				// Get the selection key
+				SelectionKey selKey = it.next();
+
+				// Remove it from the list to indicate that it is being
+				// processed. it.remove removes the last item returned by next.
+				it.remove();
+
+				// Check if it's a connection request
+				if (selKey.isValid() && selKey.isAcceptable()) {
+					ConnectionAcceptor<T> acceptor = (ConnectionAcceptor<T>) selKey.attachment();
+					try {
+						acceptor.accept();
+					} catch (IOException e) {
+						logger.info("problem accepting a new connection: " + e.getMessage());
+					}
+					continue;
+				}
+				// Check if a message has been sent
+				if (selKey.isValid() && selKey.isReadable()) {
+					ConnectionHandler<T> handler = (ConnectionHandler<T>) selKey.attachment();
+					if (logger.isLoggable(Level.FINE)) {
+						logger.fine("Channel is ready for reading");
+					}
+					handler.read();
+				}
+				// Check if there are messages to send
+				if (selKey.isValid() && selKey.isWritable()) {
+					ConnectionHandler<T> handler = (ConnectionHandler<T>) selKey.attachment();
+					if (logger.isLoggable(Level.FINE)) {
+						logger.fine("Channel is ready for writing");
+					}
+					handler.write();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the loop. The loop's thread leaves <CODE>run()</CODE> after its
+	 * current iteration.
+	 */
+	public void stop() {
+		_shouldRun = false;
+		_data.getSelector().wakeup(); // Force select() to return
+	}
+}
@@ -0,0 +1,112 @@
+package impl.reactor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.Counter;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+/**
+ * The metrics of a Reactor, looked up once in the MetricsRegistry and shared
+ * by all of its loops:
+ * <UL>
+ * <LI>counters of connections accepted and closed, bytes read and written,
+ * and messages decoded
+ * <LI>gauges of the open connections, the executor's queue, and the outgoing
+ * data queued on all the connections
+ * <LI>latency histograms of the time from reading data until its messages are
+ * processed, of processing a message, and of the time from queueing outgoing
+ * data until it is written
+ * </UL>
+ */
+public class ReactorMetrics {
+
+	private final Counter _connectionsAccepted;
+	private final Counter _connectionsClosed;
+	private final Counter _bytesIn;
+	private final Counter _bytesOut;
+	private final Counter _messagesIn;
+
+	private final LatencyHistogram _readToProcess;
+	private final LatencyHistogram _process;
+	private final LatencyHistogram _queueToFlush;
+
+	/** the number of buffers queued for sending, over all the connections */
+	private final LongAdder _outboundBuffers = new LongAdder();
+
+	public ReactorMetrics(MetricsRegistry registry, ExecutorService executor, ConnectionLimiter connectionLimiter,
+			OutboundBudget outboundBudget) {
+		_connectionsAccepted = registry.counter("reactor.connections.accepted");
+		_connectionsClosed = registry.counter("reactor.connections.closed");
+		_bytesIn = registry.counter("reactor.bytes.in");
+		_bytesOut = registry.counter("reactor.bytes.out");
+		_messagesIn = registry.counter("reactor.messages.in");
+
+		_readToProcess = registry.histogram("reactor.latency.readToProcess");
+		_process = registry.histogram("reactor.latency.process");
+		_queueToFlush = registry.histogram("reactor.latency.queueToFlush");
+
+		registry.gauge("reactor.connections.open", connectionLimiter::getConnections);
+		registry.gauge("reactor.connections.rejected", connectionLimiter::getRejected);
+		registry.gauge("reactor.outbound.queuedBytes", outboundBudget::getQueuedBytes);
+		registry.gauge("reactor.outbound.queuedBuffers", _outboundBuffers::sum);
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			registry.gauge("reactor.executor.queueDepth", () -> pool.getQueue().size());
+			registry.gauge("reactor.executor.active", pool::getActiveCount);
+		}
+	}
+
+	public Counter getConnectionsAccepted() {
+		return _connectionsAccepted;
+	}
+
+	public Counter getConnectionsClosed() {
+		return _connectionsClosed;
+	}
+
+	public Counter getBytesIn() {
+		return _bytesIn;
+	}
+
+	public Counter getBytesOut() {
+		return _bytesOut;
+	}
+
+	public Counter getMessagesIn() {
+		return _messagesIn;
+	}
+
+	/**
+	 * @return the time from reading data from a client until its messages
+	 *         start being processed
+	 */
+	public LatencyHistogram getReadToProcess() {
+		return _readToProcess;
+	}
+
+	/**
+	 * @return the time the protocol takes to process a message
+	 */
+	public LatencyHistogram getProcess() {
+		return _process;
+	}
+
+	/**
+	 * @return the time from queueing outgoing data until all the data queued
+	 *         on the connection is written
+	 */
+	public LatencyHistogram getQueueToFlush() {
+		return _queueToFlush;
+	}
+
+	/**
+	 * Accounts for buffers added to (positive) or removed from (negative) the
+	 * outgoing queue of a connection
+	 */
+	public void outboundBuffers(int delta) {
+		_outboundBuffers.add(delta);
+	}
+}
@@ -0,0 +1,62 @@
+package impl.reactor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded message that is shared by the outgoing queues of many
+ * connections. Every connection sends a read-only view of its own, so the
+ * position of one connection's writes does not affect the others.<br/>
+ * The buffer is reference counted: it starts with a single reference, held by
+ * the BroadcastMessage it encodes, and every connection that queues it holds
+ * another one until the view is sent or dropped. The buffer goes back to its
+ * pool when the last reference is released.
+ */
+public final class SharedBuffer implements AutoCloseable {
+
+	private final ByteBuffer _buf;
+
+	private final BufferPool _pool;
+
+	private final AtomicInteger _refs = new AtomicInteger(1);
+
+	/**
+	 * @param buf
+	 *            the encoded message, ready to be read
+	 * @param pool
+	 *            the pool the buffer was acquired from
+	 */
+	public SharedBuffer(ByteBuffer buf, BufferPool pool) {
+		_buf = buf;
+		_pool = pool;
+	}
+
+	/**
+	 * Takes another reference to the buffer
+	 *
+	 * @return a read-only view of the encoded message, for the new reference
+	 *         to send
+	 */
+	public ByteBuffer retain() {
+		_refs.incrementAndGet();
+		return _buf.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Releases a reference to the buffer, returning the buffer to its pool if
+	 * it was the last one
+	 */
+	public void release() {
+		if (_refs.decrementAndGet() == 0) {
+			_pool.release(_buf);
+		}
+	}
+
+	/**
+	 * Releases the reference of the BroadcastMessage
+	 */
+	@Override
+	public void close() {
+		release();
+	}
+}
@@ -0,0 +1,178 @@
+package impl.reactor;
+
+/**
+ * A hashed timing wheel, driven by a selector loop.<br/>
+ * Timers are kept in a fixed ring of buckets, one bucket per tick. Scheduling
+ * and cancelling a timer are O(1), and every tick only visits the timers of a
+ * single bucket, so a loop can keep a timer for each of its connections.<br/>
+ * The wheel is not thread safe: it must be used by the thread of its loop only.
+ */
+public class TimingWheel {
+
+	/**
+	 * A scheduled timer
+	 */
+	public static final class Timeout {
+		private final Runnable _task;
+
+		/** the number of full turns of the wheel left before the timer expires */
+		private long _rounds;
+
+		private int _bucket = -1;
+
+		private Timeout _prev;
+		private Timeout _next;
+
+		private Timeout(Runnable task) {
+			_task = task;
+		}
+
+		/**
+		 * @return true if the timer neither expired nor was cancelled
+		 */
+		public boolean isPending() {
+			return _bucket != -1;
+		}
+	}
+
+	private final Timeout[] _buckets;
+
+	private final int _mask;
+
+	private final long _tickNanos;
+
+	/** the time (System.nanoTime) the current tick started */
+	private long _tickStart;
+
+	private long _tick = 0;
+
+	private int _size = 0;
+
+	/**
+	 * Creates a new TimingWheel
+	 *
+	 * @param tickMillis
+	 *            the resolution of the timers
+	 * @param buckets
+	 *            the number of buckets of the wheel, rounded up to a power of
+	 *            two
+	 */
+	public TimingWheel(long tickMillis, int buckets) {
+		int n = 1;
+		while (n < buckets) {
+			n <<= 1;
+		}
+		_buckets = new Timeout[n];
+		_mask = n - 1;
+		_tickNanos = tickMillis * 1000000L;
+		_tickStart = System.nanoTime();
+	}
+
+	/**
+	 * Schedules a task to run after the given delay. The task runs on the
+	 * thread of the loop, no earlier than the delay, and up to one tick later.
+	 *
+	 * @return the new timer, which can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		long ticks = Math.max(1, (delayMillis * 1000000L + _tickNanos - 1) / _tickNanos);
+		Timeout timeout = new Timeout(task);
+		timeout._rounds = (ticks - 1) / _buckets.length;
+		link(timeout, (int) ((_tick + ticks) & _mask));
+		return timeout;
+	}
+
+	/**
+	 * Cancels a timer. Cancelling a timer that is not pending has no effect.
+	 */
+	public void cancel(Timeout timeout) {
+		if (timeout.isPending()) {
+			unlink(timeout);
+		}
+	}
+
+	/**
+	 * Runs the tasks of all the timers that expired by the given time
+	 *
+	 * @param now
+	 *            the current time, as returned by System.nanoTime()
+	 */
+	public void advance(long now) {
+		if (_size == 0) {
+			// nothing can expire. just catch up with the time
+			long behind = (now - _tickStart) / _tickNanos;
+			_tickStart += behind * _tickNanos;
+			_tick += behind;
+			return;
+		}
+		while (now - _tickStart >= _tickNanos) {
+			_tickStart += _tickNanos;
+			_tick++;
+			expire((int) (_tick & _mask));
+		}
+	}
+
+	/**
+	 * @return the number of milliseconds until the next tick, or 0 if there
+	 *         are no pending timers (so the loop may wait indefinitely)
+	 */
+	public long millisToNextTick(long now) {
+		if (_size == 0) {
+			return 0;
+		}
+		long nanos = _tickStart + _tickNanos - now;
+		return Math.max(1, (nanos + 999999) / 1000000);
+	}
+
+	private void expire(int bucket) {
+		// first take the expired timers out of the bucket, so that the tasks
+		// may schedule and cancel timers freely while they run
+		Timeout timeout = _buckets[bucket];
+		Timeout expired = null;
+		while (timeout != null) {
+			Timeout next = timeout._next;
+			if (timeout._rounds == 0) {
+				unlink(timeout);
+				timeout._next = expired;
+				expired = timeout;
+			} else {
+				timeout._rounds--;
+			}
+			timeout = next;
+		}
+
+		while (expired != null) {
+			Timeout next = expired._next;
+			expired._next = null;
+			expired._task.run();
+			expired = next;
+		}
+	}
+
+	private void link(Timeout timeout, int bucket) {
+		Timeout head = _buckets[bucket];
+		timeout._bucket = bucket;
+		timeout._prev = null;
+		timeout._next = head;
+		if (head != null) {
+			head._prev = timeout;
+		}
+		_buckets[bucket] = timeout;
+		_size++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout._prev != null) {
+			timeout._prev._next = timeout._next;
+		} else {
+			_buckets[timeout._bucket] = timeout._next;
+		}
+		if (timeout._next != null) {
+			timeout._next._prev = timeout._prev;
+		}
+		timeout._bucket = -1;
+		timeout._prev = null;
+		timeout._next = null;
+		_size--;
+	}
+}
@@ -0,0 +1,27 @@
+package impl.reactor.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by a ConnectionAcceptor for every connection it accepts, whether it
+ * is admitted or rejected.
+ */
+@Name("edu.spl.reactor.Accept")
+@Label("Accept")
+@Category({ "Reactor", "Connections" })
+@Description("A new connection was accepted")
+@StackTrace(false)
+public class AcceptEvent extends Event {
+
+	@Label("Remote Address")
+	public String remoteAddress;
+
+	@Label("Admitted")
+	@Description("False if the connection was rejected by the admission control")
+	public boolean admitted;
+}
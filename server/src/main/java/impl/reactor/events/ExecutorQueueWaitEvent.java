@@ -0,0 +1,20 @@
+package impl.reactor.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans the time a ProtocolTask waited in the executor's queue, from the
+ * moment it was submitted until a worker thread started running it.
+ */
+@Name("edu.spl.reactor.ExecutorQueueWait")
+@Label("Executor Queue Wait")
+@Category({ "Reactor", "Executor" })
+@Description("A connection's task waited for a worker thread")
+@StackTrace(false)
+public class ExecutorQueueWaitEvent extends Event {
+}
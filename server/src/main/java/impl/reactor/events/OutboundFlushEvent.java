@@ -0,0 +1,37 @@
+package impl.reactor.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by a ConnectionHandler for every gathering write of its pending
+ * data.
+ */
+@Name("edu.spl.reactor.OutboundFlush")
+@Label("Outbound Flush")
+@Category({ "Reactor", "Connections" })
+@Description("Pending data was written to a connection")
+@StackTrace(false)
+public class OutboundFlushEvent extends Event {
+
+	@Label("Buffers")
+	public int buffers;
+
+	@Label("Bytes Written")
+	@DataAmount
+	public long bytesWritten;
+
+	@Label("Partial")
+	@Description("True if the socket did not take all the data that was offered")
+	public boolean partial;
+
+	@Label("Bytes Queued")
+	@Description("The data left pending on the connection after the write")
+	@DataAmount
+	public long bytesQueued;
+}
@@ -0,0 +1,32 @@
+package impl.reactor.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by a ProtocolTask for every batch of buffers it takes from its
+ * mailbox, covering the decoding of the buffers and the processing of the
+ * messages found in them.
+ */
+@Name("edu.spl.reactor.ReadBatch")
+@Label("Read Batch")
+@Category({ "Reactor", "Connections" })
+@Description("Bytes read from a connection were decoded and processed")
+@StackTrace(false)
+public class ReadBatchEvent extends Event {
+
+	@Label("Buffers")
+	public int buffers;
+
+	@Label("Bytes Read")
+	@DataAmount
+	public long bytesRead;
+
+	@Label("Messages Decoded")
+	public int messagesDecoded;
+}
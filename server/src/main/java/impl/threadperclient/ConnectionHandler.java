@@ -3,6 +3,7 @@ package impl.threadperclient;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 import protocol.AsyncServerProtocol;
 import tokenizer.MessageTokenizer;
@@ -15,6 +16,12 @@ class ConnectionHandler<T> implements Runnable {
     private final AsyncServerProtocol<T> protocol;
     private final MessageTokenizer<T> tokenizer;
     
+    /**
+     * Held while a message is encoded and written, so messages are written in the order they are encoded. A lock
+     * rather than a monitor, so a virtual thread that blocks on the write does not pin its carrier thread.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
     public ConnectionHandler(SocketChannel acceptedChannel, AsyncServerProtocol<T> p, MessageTokenizer<T> t)
     {
         clientChannel = acceptedChannel;
@@ -72,10 +79,35 @@ class ConnectionHandler<T> implements Runnable {
 				
 				buf.flip();
 				tokenizer.addBytes(buf);
+				if (tokenizer.shouldClose()) {
+					// the client broke the framing rules, e.g. sent a line that is too long
+					System.out.println("Client on " + clientChannel.socket().getRemoteSocketAddress() + 
+							" sent invalid input (" + tokenizer.getRejectedBytes() + " bytes rejected)");
+					protocol.connectionTerminated();
+					terminated = true;
+					break;
+				}
 			}
         
+			if (terminated) {
+				break;
+			}
 			// Process the message
-	        protocol.processMessage(tokenizer.nextMessage(), (m) -> clientChannel.write(tokenizer.getBytesForMessage(m)));
+	        // other threads send to the client as well. the messages are written in the order they are
+	        // encoded, as the encoding may depend on the messages before it. the tokenizer is only locked
+	        // while encoding, so the reader of this client never waits for a slow write
+	        protocol.processMessage(tokenizer.nextMessage(), (m) -> {
+	        	writeLock.lock();
+	        	try {
+	        		ByteBuffer bytes;
+	        		synchronized (tokenizer) {
+	        			bytes = tokenizer.getBytesForMessage(m);
+	        		}
+	        		clientChannel.write(bytes);
+	        	} finally {
+	        		writeLock.unlock();
+	        	}
+	        });
         }
         
         close();
@@ -91,6 +123,7 @@ class ConnectionHandler<T> implements Runnable {
     // Closes the connection
     public void close()
     {
+        tokenizer.close();
         try {            
             clientChannel.close();
         }
@@ -3,35 +3,45 @@ package impl.threadperclient;
 import java.io.*;
 import java.net.*;
 import java.nio.channels.ServerSocketChannel;
-import java.nio.charset.Charset;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import protocol.AsyncServerProtocol;
 import protocol.ServerProtocolFactory;
 import protocol.tbgp.TBGPProtocol;
 import protocol.tbgp.TBGPRoom;
 import protocol.tbgp.TBGPServer;
+import protocol.tbgp.TBGPTokenizerFactory;
 import protocol.tbgp.games.TBGPGame;
 import protocol.tbgp.games.TBGPGameFactory;
 import protocol.tbgp.games.bluffer.Bluffer;
-import tokenizer.FixedSeparatorMessageTokenizer;
-import tokenizer.MessageTokenizer;
+import tokenizer.FrameLimit;
 import tokenizer.StringMessage;
 import tokenizer.TokenizerFactory;
  
-class MultipleClientProtocolServer<T> implements Runnable {
+public class MultipleClientProtocolServer<T> implements Runnable {
     private ServerSocketChannel ssChannel;
     private int listenPort;
     private ServerProtocolFactory<T> protocolFactory;
     private TokenizerFactory<T> tokenizerFactory; 
+    private ThreadFactory threadFactory;
     
     public MultipleClientProtocolServer(int port, ServerProtocolFactory<T> p, TokenizerFactory<T> t)
+    {
+        this(port, p, t, Thread::new);
+    }
+    
+    /**
+     * @param threadFactory creates the thread that serves each client, e.g. a platform or a virtual thread
+     */
+    public MultipleClientProtocolServer(int port, ServerProtocolFactory<T> p, TokenizerFactory<T> t, ThreadFactory threadFactory)
     {
         ssChannel = null;
         listenPort = port;
         protocolFactory = p;
         tokenizerFactory = t;
+        this.threadFactory = threadFactory;
     }
     
     public void run()
@@ -50,7 +60,7 @@ class MultipleClientProtocolServer<T> implements Runnable {
             try {
                 ConnectionHandler<T> newConnection = new ConnectionHandler<T>(ssChannel.accept(), 
                 		protocolFactory.create(), tokenizerFactory.create());
-                new Thread(newConnection).start();
+                threadFactory.newThread(newConnection).start();
             } catch (IOException e) {
                 System.out.println("Failed to accept on port " + listenPort);
             }
@@ -64,18 +74,48 @@ class MultipleClientProtocolServer<T> implements Runnable {
         ssChannel.close();
     }
     
+    /**
+     * Creates a factory of virtual threads, one per client. Virtual threads are cheap enough to serve
+     * a very large number of mostly idle clients, with the same blocking I/O.
+     * They are looked up reflectively, so the server still builds and runs on older JDKs.
+     * 
+     * @throws UnsupportedOperationException if the JVM has no virtual threads (before Java 21)
+     */
+    public static ThreadFactory virtualThreadFactory() {
+    	try {
+    		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+    		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+    		builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "client-", 0L);
+    		return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    	} catch (ReflectiveOperationException e) {
+    		throw new UnsupportedOperationException("virtual threads require Java 21 or later", e);
+    	}
+    }
+    
     /** 
      * Runs a TBGP server in the given port. Can easily be changes for other protocols
      */
     public static void main(String[] args) throws IOException {
-    	if (args.length != 2) {
-    		System.err.println("Usage: server <port> <questionsDBPath>");
+    	if (args.length != 2 && args.length != 3) {
+    		System.err.println("Usage: server <port> <questionsDBPath> [platform|virtual]");
             System.exit(1);
     	}
 
     	try {
 	    	int port = Integer.decode(args[0]).intValue();
 	    	String questionsPath = args[1];
+	    	String threadsMode = args.length == 3 ? args[2] : "platform";
+	    	
+	    	ThreadFactory threadFactory;
+	    	if (threadsMode.equals("virtual")) {
+	    		threadFactory = virtualThreadFactory();
+	    	} else if (threadsMode.equals("platform")) {
+	    		threadFactory = Thread::new;
+	    	} else {
+	    		System.err.println("Unknown threads mode: " + threadsMode);
+	    		System.exit(1);
+	    		return;
+	    	}
 	    	
 	    	TBGPGameFactory gameFactory = new TBGPGameFactory() {
 	    		public TBGPGame create(String gameName, TBGPRoom room) {
@@ -102,14 +142,12 @@ class MultipleClientProtocolServer<T> implements Runnable {
 	            }
 	        };
 	        
-	        TokenizerFactory<StringMessage> tokenizerMaker = new TokenizerFactory<StringMessage>() {
-	            public MessageTokenizer<StringMessage> create() {
-	                return new FixedSeparatorMessageTokenizer("\n", Charset.forName("UTF-8"));
-	            }
-	        };
+	        FrameLimit frameLimit = FrameLimit.fromSystemProperties();
+	        // text, unless the client negotiates the binary encoding or compression on connect
+	        TokenizerFactory<StringMessage> tokenizerMaker = new TBGPTokenizerFactory(frameLimit);
 	    	
 	    	MultipleClientProtocolServer<StringMessage> s = 
-	    			new MultipleClientProtocolServer<>(port, protocolMaker, tokenizerMaker);
+	    			new MultipleClientProtocolServer<>(port, protocolMaker, tokenizerMaker, threadFactory);
 	    	
 	    	Thread thread = new Thread(s);
 	        thread.start();
@@ -0,0 +1,29 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter. Updates are striped over cells, so threads that count
+ * concurrently do not contend on a single memory location, and do not
+ * allocate.
+ */
+public final class Counter {
+
+	private final LongAdder _value = new LongAdder();
+
+	public void increment() {
+		_value.increment();
+	}
+
+	public void add(long n) {
+		_value.add(n);
+	}
+
+	/**
+	 * @return the current value of the counter. Not an atomic snapshot while
+	 *         other threads update it.
+	 */
+	public long get() {
+		return _value.sum();
+	}
+}
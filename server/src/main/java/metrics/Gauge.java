@@ -0,0 +1,11 @@
+package metrics;
+
+/**
+ * A value that is sampled when the metrics are read, rather than updated on
+ * the hot path (e.g. the length of a queue).
+ */
+@FunctionalInterface
+public interface Gauge {
+
+	long getValue();
+}
@@ -0,0 +1,130 @@
+package metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in the manner of HdrHistogram: the values are
+ * counted in log-linear buckets, each power of two split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, so every value is kept with a
+ * relative error of about 6%, over a range of microseconds to hours, in a
+ * fixed array.<br/>
+ * Recording a value takes a few atomic increments, and never allocates.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** the number of linear sub-buckets in every power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** values (in microseconds) at or above 2^MAX_BITS are counted as the maximal one */
+	private static final int MAX_BITS = 36;
+
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray _buckets = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+
+	private final LongAdder _count = new LongAdder();
+
+	private final LongAdder _sum = new LongAdder();
+
+	private final AtomicLong _max = new AtomicLong();
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos
+	 *            the latency, in nanoseconds. Kept at a resolution of
+	 *            microseconds.
+	 */
+	public void recordNanos(long nanos) {
+		long micros = Math.min(Math.max(0, nanos / 1000), MAX_VALUE);
+		_buckets.incrementAndGet(bucketIndex(micros));
+		_count.increment();
+		_sum.add(micros);
+		long max;
+		while (micros > (max = _max.get()) && !_max.compareAndSet(max, micros)) {
+			// lost a race with another maximum, try again
+		}
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return _count.sum();
+	}
+
+	/**
+	 * @return the largest recorded value, in microseconds
+	 */
+	public long getMaxMicros() {
+		return _max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, in microseconds
+	 */
+	public double getMeanMicros() {
+		long count = _count.sum();
+		return count == 0 ? 0 : (double) _sum.sum() / count;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the value, in microseconds, that the given fraction of the
+	 *         recorded values do not exceed (up to the resolution of the
+	 *         buckets), or 0 if nothing was recorded
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] counts = new long[_buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = _buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(highestValueInBucket(i), _max.get());
+			}
+		}
+		return _max.get();
+	}
+
+	/**
+	 * @return a one-line summary of the histogram, in microseconds
+	 */
+	public String summary() {
+		return String.format(Locale.ROOT, "count=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d", getCount(), getMeanMicros(),
+				getValueAtQuantile(0.5), getValueAtQuantile(0.9), getValueAtQuantile(0.99),
+				getValueAtQuantile(0.999), getMaxMicros());
+	}
+
+	private static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS * 2) {
+			return (int) value;
+		}
+		// the values with the same highest bit share SUB_BUCKETS buckets
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return SUB_BUCKETS * shift + (int) (value >>> shift);
+	}
+
+	private static long highestValueInBucket(int index) {
+		if (index < SUB_BUCKETS * 2) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,30 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of a MetricsRegistry, as exposed through JMX
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * @return the current values of the counters, by name
+	 */
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return the current values of the gauges, by name
+	 */
+	Map<String, Long> getGauges();
+
+	/**
+	 * @return a summary of every histogram, by name. The latencies are in
+	 *         microseconds.
+	 */
+	Map<String, String> getHistograms();
+
+	/**
+	 * @return all the metrics, on a single line
+	 */
+	String getReport();
+}
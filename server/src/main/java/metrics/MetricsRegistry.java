@@ -0,0 +1,137 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Holds the named metrics of the server: counters, gauges and latency
+ * histograms.<br/>
+ * Metrics are created (or looked up) by name once, and the returned objects
+ * are then kept by the code that updates them, so recording a value never
+ * involves the registry, and never allocates.
+ */
+public class MetricsRegistry implements MetricsMXBean {
+
+	private static final Logger logger = Logger.getLogger("edu.spl.metrics");
+
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final ConcurrentMap<String, Counter> _counters = new ConcurrentSkipListMap<String, Counter>();
+
+	private final ConcurrentMap<String, Gauge> _gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	private final ConcurrentMap<String, LatencyHistogram> _histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+	/**
+	 * @return the registry shared by the whole process
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the counter of the given name, which is created if it does not
+	 *         exist yet
+	 */
+	public Counter counter(String name) {
+		Counter counter = _counters.get(name);
+		if (counter == null) {
+			Counter newCounter = new Counter();
+			counter = _counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the histogram of the given name, which is created if it does not
+	 *         exist yet
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = _histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = _histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Registers a gauge, replacing the gauge of the same name, if any
+	 */
+	public void gauge(String name, Gauge gauge) {
+		_gauges.put(name, gauge);
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Counter> entry : _counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Gauge> entry : _gauges.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return values;
+	}
+
+	@Override
+	public Map<String, String> getHistograms() {
+		Map<String, String> values = new TreeMap<String, String>();
+		for (Map.Entry<String, LatencyHistogram> entry : _histograms.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().summary());
+		}
+		return values;
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+			report.append(entry.getKey()).append('=').append(entry.getValue()).append(' ');
+		}
+		for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+			report.append(entry.getKey()).append('=').append(entry.getValue()).append(' ');
+		}
+		for (Map.Entry<String, String> entry : getHistograms().entrySet()) {
+			report.append(entry.getKey()).append("={").append(entry.getValue()).append("} ");
+		}
+		return report.toString().trim();
+	}
+
+	/**
+	 * Exposes the registry through the platform MBean server, as
+	 * <CODE>edu.spl:type=Metrics,name=&lt;name&gt;</CODE>. Does nothing if
+	 * such an MBean is already registered.
+	 */
+	public void registerMBean(String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName("edu.spl:type=Metrics,name=" + ObjectName.quote(name));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+			}
+		} catch (JMException e) {
+			logger.info("cannot register the metrics MBean: " + e.getMessage());
+		}
+	}
+}
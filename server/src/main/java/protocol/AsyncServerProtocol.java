@@ -33,4 +33,13 @@ public interface AsyncServerProtocol<T> extends ServerProtocol<T> {
 	 * Indicate to the protocol that the client disconnected.
 	 */
 	void connectionTerminated();
+
+	/**
+	 * Indicate to the protocol that the client has not sent anything for a while.
+	 * The protocol may send the client a heartbeat, to check that it is still there.
+	 *
+	 * @param callback an instance of ProtocolCallback unique to the idle connection.
+	 */
+	default void connectionIdle(ProtocolCallback<T> callback) {
+	}
 }
@@ -0,0 +1,58 @@
+package protocol;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A message that is sent to many connections at once.<br/>
+ * The server encodes the message only once for every wire format, the first time it is sent to a connection
+ * of that format, and shares the encoded bytes among all the connections. The sender must close the
+ * message once it was handed to all of its recipients, so the encoded bytes can be freed when the last
+ * recipient is done with them.
+ *
+ * @param <T> type of message that the protocol handles.
+ */
+public class BroadcastMessage<T> implements AutoCloseable {
+	private final T message;
+	private final ConcurrentMap<Object, Object> encodings = new ConcurrentHashMap<Object, Object>(4);
+
+	public BroadcastMessage(T message) {
+		this.message = message;
+	}
+
+	public T getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * Returns the encoding of the message in the given format, encoding it if this is the first time the
+	 * format is asked for.
+	 *
+	 * @param format identifies the wire format. Connections that encode messages into the same bytes must
+	 *        give equal formats.
+	 * @param encoder encodes the message in that format.
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> E getEncoding(Object format, Function<? super T, ? extends E> encoder) {
+		return (E) this.encodings.computeIfAbsent(format, f -> encoder.apply(this.message));
+	}
+
+	/**
+	 * Indicates that the message was handed to all of its recipients. Encodings that hold resources
+	 * (i.e. implement AutoCloseable) are closed.
+	 */
+	@Override
+	public void close() {
+		for (Object encoding : this.encodings.values()) {
+			if (encoding instanceof AutoCloseable) {
+				try {
+					((AutoCloseable) encoding).close();
+				} catch (Exception ignored) {
+					ignored = null;
+				}
+			}
+		}
+		this.encodings.clear();
+	}
+}
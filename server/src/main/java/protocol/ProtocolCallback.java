@@ -14,4 +14,25 @@ public interface ProtocolCallback<T> {
 	 * @throws IOException if the message could not be sent , or if the connection to this client has been closed .
 	 */
 	void sendMessage (T msg) throws java.io.IOException;
+
+	/**
+	 * Sends a message that is sent to other connections as well. The server may share the encoded message
+	 * among the connections, instead of encoding it for each of them.
+	 *
+	 * @param msg message to be sent. The sender closes it once it was handed to all of its recipients.
+	 * @throws IOException if the message could not be sent , or if the connection to this client has been closed .
+	 */
+	default void sendBroadcast (BroadcastMessage<T> msg) throws java.io.IOException {
+		sendMessage(msg.getMessage());
+	}
+
+	/**
+	 * Stops reading from the connection for a while, to slow down a client that sends too much.
+	 *
+	 * @param millis the time to stop reading for.
+	 * @return false if the connection cannot stop reading, true otherwise.
+	 */
+	default boolean suspendReading (long millis) {
+		return false;
+	}
 }
\ No newline at end of file
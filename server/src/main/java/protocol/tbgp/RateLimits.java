@@ -0,0 +1,146 @@
+package protocol.tbgp;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The limits on the rate of the commands, as token buckets:
+ * <UL>
+ * <LI>a limit on all the commands of a user
+ * <LI>limits on single commands of a user - MSG, for example
+ * <LI>a limit on the commands the users of a room send into it - MSG, STARTGAME, TXTRESP and SELECTRESP - so 
+ * that a noisy room cannot hog the lanes and the fan-out workers
+ * </UL>
+ * A command over a limit is rejected, or, with the PAUSE policy, let through while the connection stops 
+ * being read from until the user is back within the limit.
+ */
+public class RateLimits {
+	public enum Policy {
+		/** A command over a limit is rejected */
+		REJECT,
+		/** A command over a limit is processed, and the connection is not read from for a while */
+		PAUSE
+	}
+	
+	/**
+	 * A rate, and the burst allowed above it
+	 */
+	public static final class Limit {
+		private final double perSecond;
+		private final double burst;
+		
+		public Limit(double perSecond, double burst) {
+			this.perSecond = perSecond;
+			this.burst = burst;
+		}
+		
+		/**
+		 * @param limit "rate/burst", as "10/20" - or "off" for no limit
+		 * @return The limit, or null for no limit
+		 */
+		public static Limit parse(String limit) {
+			if (limit == null || limit.equalsIgnoreCase("off")) {
+				return null;
+			}
+			int slash = limit.indexOf('/');
+			if (slash == -1) {
+				throw new IllegalArgumentException("a rate limit should be rate/burst: " + limit);
+			}
+			return new Limit(Double.parseDouble(limit.substring(0, slash).trim()), 
+					Double.parseDouble(limit.substring(slash + 1).trim()));
+		}
+		
+		public TokenBucket newBucket() {
+			return new TokenBucket(this.perSecond, this.burst);
+		}
+	}
+	
+	private final Limit userLimit;
+	private final Map<TBGPCommand, Limit> commandLimits;
+	private final Limit roomLimit;
+	private final Policy policy;
+	
+	/**
+	 * @param userLimit The limit on all the commands of a user, or null
+	 * @param commandLimits The limits on single commands of a user
+	 * @param roomLimit The limit on the commands sent into a room, or null
+	 */
+	public RateLimits(Limit userLimit, Map<TBGPCommand, Limit> commandLimits, Limit roomLimit, Policy policy) {
+		this.userLimit = userLimit;
+		this.commandLimits = new EnumMap<>(TBGPCommand.class);
+		this.commandLimits.putAll(commandLimits);
+		this.roomLimit = roomLimit;
+		this.policy = policy;
+	}
+	
+	/**
+	 * @return No limits at all
+	 */
+	public static RateLimits none() {
+		return new RateLimits(null, new EnumMap<>(TBGPCommand.class), null, Policy.REJECT);
+	}
+	
+	/**
+	 * Reads the limits from system properties, as "rate/burst" (as 20/50) or "off". No limit is set unless
+	 * its property is:
+	 * <UL>
+	 * <LI>tbgp.rateLimit.user - all the commands of a user
+	 * <LI>tbgp.rateLimit.&lt;COMMAND&gt; - a single command of a user, as tbgp.rateLimit.MSG
+	 * <LI>tbgp.rateLimit.room - the commands sent into a room
+	 * <LI>tbgp.rateLimit.policy - REJECT or PAUSE (default REJECT)
+	 * </UL>
+	 */
+	public static RateLimits fromSystemProperties() {
+		Map<TBGPCommand, Limit> commandLimits = new EnumMap<>(TBGPCommand.class);
+		for (TBGPCommand command : TBGPCommand.values()) {
+			Limit limit = Limit.parse(System.getProperty("tbgp.rateLimit." + command.name()));
+			if (limit != null) {
+				commandLimits.put(command, limit);
+			}
+		}
+		return new RateLimits(Limit.parse(System.getProperty("tbgp.rateLimit.user")), commandLimits,
+				Limit.parse(System.getProperty("tbgp.rateLimit.room")),
+				Policy.valueOf(System.getProperty("tbgp.rateLimit.policy", "REJECT").toUpperCase()));
+	}
+	
+	/**
+	 * @return A bucket for all the commands of a new user, or null if they are not limited
+	 */
+	public TokenBucket newUserBucket() {
+		return this.userLimit == null ? null : this.userLimit.newBucket();
+	}
+	
+	/**
+	 * @return A bucket for a single command of a new user, or null if the command is not limited
+	 */
+	public TokenBucket newCommandBucket(TBGPCommand command) {
+		Limit limit = this.commandLimits.get(command);
+		return limit == null ? null : limit.newBucket();
+	}
+	
+	/**
+	 * @return A bucket for the commands sent into a new room, or null if they are not limited
+	 */
+	public TokenBucket newRoomBucket() {
+		return this.roomLimit == null ? null : this.roomLimit.newBucket();
+	}
+	
+	/**
+	 * @return True if the command counts against the limit of the room it is sent into
+	 */
+	public boolean isRoomCommand(TBGPCommand command) {
+		switch (command) {
+		case MSG:
+		case STARTGAME:
+		case TXTRESP:
+		case SELECTRESP:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	public Policy getPolicy() {
+		return this.policy;
+	}
+}
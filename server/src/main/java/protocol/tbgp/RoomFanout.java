@@ -0,0 +1,154 @@
+package protocol.tbgp;
+
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import protocol.BroadcastMessage;
+import tokenizer.StringMessage;
+
+/**
+ * Sends the messages of the rooms to their spectators, away from the lanes of the rooms.<br/>
+ * The audience of a room is split into tiers, one per worker, by user - so the messages of a user are always
+ * sent by the same worker, in the order the room sent them. A worker is a single thread, that sends its tier
+ * of a message in chunks, so that the chunks of other rooms' messages are interleaved with those of a large
+ * audience. The tiers are immutable snapshots, that the workers read while the room keeps changing.
+ */
+public class RoomFanout {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
+
+	public static final int DEFAULT_CHUNK_SIZE = 256;
+
+	private static final TBGPUser[][] NO_TIERS = new TBGPUser[0][];
+
+	private final ExecutorService[] workers;
+	private final int chunkSize;
+	private final LongAdder pendingChunks = new LongAdder();
+
+	/**
+	 * @param workerCount The number of workers (threads)
+	 * @param chunkSize The number of users a worker sends a message to before it lets other messages go
+	 */
+	public RoomFanout(int workerCount, int chunkSize) {
+		if (workerCount <= 0 || chunkSize <= 0) {
+			throw new IllegalArgumentException("workerCount and chunkSize must be positive");
+		}
+		this.chunkSize = chunkSize;
+		this.workers = new ExecutorService[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			final String name = "room-fanout-" + i;
+			this.workers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Reads the number of workers from the system property tbgp.fanoutWorkers (default - the number of
+	 * processors), and the size of a chunk from tbgp.fanoutChunkSize (default 256)
+	 */
+	public static RoomFanout fromSystemProperties() {
+		return new RoomFanout(Integer.getInteger("tbgp.fanoutWorkers", Runtime.getRuntime().availableProcessors()),
+				Integer.getInteger("tbgp.fanoutChunkSize", DEFAULT_CHUNK_SIZE));
+	}
+
+	/**
+	 * Splits an audience into the tiers of the workers
+	 * @return The users of every worker, by worker. Empty if the audience is.
+	 */
+	public TBGPUser[][] partition(Collection<TBGPUser> audience) {
+		if (audience.isEmpty()) {
+			return NO_TIERS;
+		}
+		int[] sizes = new int[this.workers.length];
+		for (TBGPUser user : audience) {
+			sizes[workerOf(user)]++;
+		}
+		TBGPUser[][] tiers = new TBGPUser[this.workers.length][];
+		for (int i = 0; i < tiers.length; i++) {
+			tiers[i] = new TBGPUser[sizes[i]];
+			sizes[i] = 0;
+		}
+		for (TBGPUser user : audience) {
+			int worker = workerOf(user);
+			tiers[worker][sizes[worker]++] = user;
+		}
+		return tiers;
+	}
+
+	/**
+	 * Hands a message to the workers, which send it to the given tiers, chunk by chunk. The message is closed
+	 * once it was sent to all of them.
+	 * @param tiers The tiers, as returned by {@link #partition}
+	 */
+	public void send(TBGPUser[][] tiers, BroadcastMessage<StringMessage> msg) {
+		// one for every chunk, and one released once all the chunks were handed out
+		AtomicInteger remaining = new AtomicInteger(1);
+		for (int i = 0; i < tiers.length; i++) {
+			TBGPUser[] tier = tiers[i];
+			for (int from = 0; from < tier.length; from += this.chunkSize) {
+				final int start = from;
+				final int end = Math.min(tier.length, from + this.chunkSize);
+				remaining.incrementAndGet();
+				this.pendingChunks.increment();
+				try {
+					this.workers[i].execute(() -> sendChunk(tier, start, end, msg, remaining));
+				} catch (RejectedExecutionException e) {
+					// the workers were shut down
+					this.pendingChunks.decrement();
+					remaining.decrementAndGet();
+				}
+			}
+		}
+		if (remaining.decrementAndGet() == 0) {
+			msg.close();
+		}
+	}
+
+	/**
+	 * @return The number of chunks that were handed to the workers, and not sent yet
+	 */
+	public long getPendingChunks() {
+		return this.pendingChunks.sum();
+	}
+
+	public int getWorkerCount() {
+		return this.workers.length;
+	}
+
+	/**
+	 * Stops the workers, after the chunks that were already handed to them
+	 */
+	public void shutdown() {
+		for (ExecutorService worker : this.workers) {
+			worker.shutdown();
+		}
+	}
+
+	private void sendChunk(TBGPUser[] tier, int from, int to, BroadcastMessage<StringMessage> msg,
+			AtomicInteger remaining) {
+		try {
+			for (int i = from; i < to; i++) {
+				tier[i].sendBroadcast(msg);
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "sending a room message failed", e);
+		} finally {
+			this.pendingChunks.decrement();
+			if (remaining.decrementAndGet() == 0) {
+				msg.close();
+			}
+		}
+	}
+
+	private int workerOf(TBGPUser user) {
+		return Math.floorMod(System.identityHashCode(user), this.workers.length);
+	}
+}
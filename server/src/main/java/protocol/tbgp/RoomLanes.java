@@ -0,0 +1,299 @@
+package protocol.tbgp;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the commands of the rooms, each room on a single lane at a time.<br/>
+ * A lane is a single thread. Every room has a mailbox of tasks, that is scheduled on the room's lane
+ * whenever it has tasks, and runs a batch of them at a time, so that a busy room does not starve the other
+ * rooms of its lane. As a room's tasks never run on two threads at once, the state of the room and its game
+ * is only touched by one thread at a time, and needs no locks.<br/>
+ * Rooms are spread over the lanes by the hash of their names. Every rebalancing period, the hottest room of
+ * the busiest lane is moved to the least busy lane, when that makes the lanes more even. A room moves the
+ * next time its mailbox is scheduled, so its tasks keep running one at a time, in order.<br/>
+ * A single timer thread serves the delayed tasks of all the rooms, such as the deadlines of their games. It
+ * only hands the expired tasks to the lanes of their rooms.
+ */
+public class RoomLanes {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
+
+	/** The number of tasks a mailbox runs before it lets the other rooms of its lane run */
+	private static final int BATCH_SIZE = 64;
+
+	/** The lanes are not rebalanced unless the busiest lane was busy for at least this much longer */
+	private static final long MIN_IMBALANCE_NANOS = 1000000L;
+
+	private final ExecutorService[] lanes;
+	private final Set<RoomMailbox> mailboxes = ConcurrentHashMap.newKeySet();
+	private final ScheduledThreadPoolExecutor timer;
+	private final LongAdder roomMoves = new LongAdder();
+	private final LongAdder expiredTimers = new LongAdder();
+	
+	/**
+	 * A delayed task of a room, that can be cancelled
+	 */
+	public static final class Timeout {
+		private volatile boolean cancelled = false;
+		private volatile ScheduledFuture<?> future;
+		
+		/**
+		 * Cancels the task. Called by the lane of the room, after which the task never runs - even if it 
+		 * already expired, and waits in the room's mailbox.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+			ScheduledFuture<?> future = this.future;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
+		
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+	}
+
+	/**
+	 * @param laneCount The number of lanes (threads)
+	 * @param rebalanceMillis The period of rebalancing, or 0 to never move rooms
+	 */
+	public RoomLanes(int laneCount, long rebalanceMillis) {
+		if (laneCount <= 0) {
+			throw new IllegalArgumentException("laneCount must be positive");
+		}
+		this.lanes = new ExecutorService[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			this.lanes[i] = Executors.newSingleThreadExecutor(daemonThreads("room-lane-" + i));
+		}
+		this.timer = new ScheduledThreadPoolExecutor(1, daemonThreads("room-lanes-timer"));
+		// most delayed tasks, such as the deadlines of rounds, are cancelled before they expire
+		this.timer.setRemoveOnCancelPolicy(true);
+		if (rebalanceMillis > 0) {
+			this.timer.scheduleWithFixedDelay(() -> rebalance(), rebalanceMillis, rebalanceMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads the number of lanes from the system property tbgp.roomLanes (default - the number of processors),
+	 * and the rebalancing period from tbgp.rebalanceMillis (default 1000)
+	 */
+	public static RoomLanes fromSystemProperties() {
+		return new RoomLanes(Integer.getInteger("tbgp.roomLanes", Runtime.getRuntime().availableProcessors()),
+				Long.getLong("tbgp.rebalanceMillis", 1000));
+	}
+
+	/**
+	 * Creates the mailbox of a new room, on the lane of its name
+	 */
+	RoomMailbox createMailbox(String roomName) {
+		RoomMailbox mailbox = new RoomMailbox(Math.floorMod(roomName.hashCode(), this.lanes.length));
+		this.mailboxes.add(mailbox);
+		return mailbox;
+	}
+
+	/**
+	 * Stops rebalancing a room that was reclaimed. Tasks that were handed to it still run.
+	 */
+	void releaseMailbox(TBGPRoom room) {
+		this.mailboxes.remove(room.getMailbox());
+	}
+
+	/**
+	 * Runs a task on the lane of the room, after the tasks that were handed to the room before it
+	 */
+	public void execute(TBGPRoom room, Runnable task) {
+		room.getMailbox().execute(task);
+	}
+
+	/**
+	 * Runs a task on the lane of the room, once the given delay passed - unless it is cancelled, or the room 
+	 * is reclaimed, before that
+	 * @return The task, to cancel it
+	 */
+	public Timeout schedule(TBGPRoom room, Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout();
+		timeout.future = this.timer.schedule(() -> execute(room, () -> {
+			if (!timeout.cancelled && !room.isClosed()) {
+				this.expiredTimers.increment();
+				task.run();
+			}
+		}), delayMillis, TimeUnit.MILLISECONDS);
+		return timeout;
+	}
+
+	/**
+	 * @return True if the current thread is running the tasks of the room
+	 */
+	public boolean inLane(TBGPRoom room) {
+		return room.getMailbox().runner == Thread.currentThread();
+	}
+
+	/**
+	 * Moves a room to another lane. The move takes effect the next time the room has tasks to run.
+	 */
+	public void moveRoom(TBGPRoom room, int lane) {
+		if (lane < 0 || lane >= this.lanes.length) {
+			throw new IllegalArgumentException("no such lane: " + lane);
+		}
+		room.getMailbox().lane = lane;
+		this.roomMoves.increment();
+	}
+
+	public int getLaneCount() {
+		return this.lanes.length;
+	}
+
+	/**
+	 * @return The number of delayed tasks that did not expire, and were not cancelled, yet
+	 */
+	public long getPendingTimers() {
+		return this.timer.getQueue().size();
+	}
+	
+	/**
+	 * @return The number of delayed tasks that expired, and ran
+	 */
+	public long getExpiredTimers() {
+		return this.expiredTimers.sum();
+	}
+	
+	/**
+	 * @return The number of times a room was moved to another lane
+	 */
+	public long getRoomMoves() {
+		return this.roomMoves.sum();
+	}
+
+	/**
+	 * Moves the hottest room of the busiest lane to the least busy lane, if that makes the lanes more even.
+	 * The load of a lane is the time its rooms' tasks ran since the last rebalancing.
+	 */
+	public synchronized void rebalance() {
+		long[] loads = new long[this.lanes.length];
+		for (RoomMailbox mailbox : this.mailboxes) {
+			long busyNanos = mailbox.busyNanos.sum();
+			mailbox.load = busyNanos - mailbox.lastBusyNanos;
+			mailbox.lastBusyNanos = busyNanos;
+			loads[mailbox.lane] += mailbox.load;
+		}
+		int busiest = 0;
+		int idlest = 0;
+		for (int i = 1; i < loads.length; i++) {
+			if (loads[i] > loads[busiest]) {
+				busiest = i;
+			}
+			if (loads[i] < loads[idlest]) {
+				idlest = i;
+			}
+		}
+		long imbalance = loads[busiest] - loads[idlest];
+		if (imbalance < MIN_IMBALANCE_NANOS) {
+			return;
+		}
+		// moving a room with a load below the imbalance lowers the load of the busiest lane
+		RoomMailbox hottest = null;
+		for (RoomMailbox mailbox : this.mailboxes) {
+			if (mailbox.lane == busiest && mailbox.load < imbalance
+					&& (hottest == null || mailbox.load > hottest.load)) {
+				hottest = mailbox;
+			}
+		}
+		if (hottest != null && hottest.load > 0) {
+			hottest.lane = idlest;
+			this.roomMoves.increment();
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("moved a room from lane " + busiest + " to lane " + idlest);
+			}
+		}
+	}
+
+	/**
+	 * Stops the lanes, after the tasks that were already handed to them
+	 */
+	public void shutdown() {
+		this.timer.shutdown();
+		for (ExecutorService lane : this.lanes) {
+			lane.shutdown();
+		}
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		return r -> {
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * The tasks of a room, that run one at a time on the room's current lane
+	 */
+	final class RoomMailbox implements Runnable {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		/** The time the tasks of the room ran */
+		private final LongAdder busyNanos = new LongAdder();
+
+		/** The lane the mailbox is scheduled on the next time */
+		private volatile int lane;
+
+		/** The thread that runs the tasks of the room, while it runs them */
+		private volatile Thread runner = null;
+
+		/** Used by rebalance() only */
+		private long lastBusyNanos = 0;
+		private long load = 0;
+
+		private RoomMailbox(int lane) {
+			this.lane = lane;
+		}
+
+		void execute(Runnable task) {
+			this.tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (this.scheduled.compareAndSet(false, true)) {
+				lanes[this.lane].execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			this.runner = Thread.currentThread();
+			long start = System.nanoTime();
+			int count = 0;
+			Runnable task;
+			while (count < BATCH_SIZE && (task = this.tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "a room task failed", e);
+				}
+				count++;
+			}
+			this.busyNanos.add(System.nanoTime() - start);
+			this.runner = null;
+			this.scheduled.set(false);
+			// tasks that were added while the flag was set
+			if (!this.tasks.isEmpty()) {
+				schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package protocol.tbgp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The list of the rooms, as LISTROOMS shows it.<br/>
+ * Every room updates its own line when users come and go, and when its game starts and stops - only that
+ * line is changed, and no room is ever scanned or locked. The whole list is rendered from the lines once
+ * it is asked for after a change, and no more often than the refresh period, and shared by everyone that
+ * asks for it in the meantime.
+ */
+public class RoomLobby {
+	private final ConcurrentMap<TBGPRoom, String> lines = new ConcurrentHashMap<>();
+	private final long refreshNanos;
+
+	/** Counts the changes of the lines */
+	private final AtomicLong version = new AtomicLong();
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * @param refreshMillis The longest time a list may be served after the rooms changed
+	 */
+	public RoomLobby(long refreshMillis) {
+		this.refreshNanos = refreshMillis * 1000000L;
+		// the first change is listed right away
+		this.snapshot = new Snapshot(0, System.nanoTime() - this.refreshNanos, "[ ]");
+	}
+
+	/**
+	 * Reads the refresh period from the system property tbgp.lobbyRefreshMillis (default 250)
+	 */
+	public static RoomLobby fromSystemProperties() {
+		return new RoomLobby(Long.getLong("tbgp.lobbyRefreshMillis", 250));
+	}
+
+	/**
+	 * Updates the line of a room. Called by the room's lane whenever the room changes.
+	 */
+	public void update(TBGPRoom room) {
+		String game = room.getGame() == null ? "none" : room.getGame().getName();
+		this.lines.put(room, room.getName() + ":" + room.getUsers().size() + ":" + room.getSpectatorCount() + ":"
+				+ game);
+		this.version.incrementAndGet();
+	}
+
+	/**
+	 * Removes the line of a room that was reclaimed
+	 */
+	public void remove(TBGPRoom room) {
+		if (this.lines.remove(room) != null) {
+			this.version.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The rooms, as "[ name:players:spectators:game ... ]", where game is "none" if no game is in
+	 *         progress. The list may be behind the rooms by up to the refresh period.
+	 */
+	public String list() {
+		Snapshot current = this.snapshot;
+		long version = this.version.get();
+		long now = System.nanoTime();
+		if (current.version == version || now - current.takenAt < this.refreshNanos) {
+			return current.text;
+		}
+		// concurrent callers may render it twice, which is harmless
+		StringBuilder sb = new StringBuilder("[ ");
+		for (String line : this.lines.values()) {
+			sb.append(line).append(' ');
+		}
+		sb.append(']');
+		Snapshot rendered = new Snapshot(version, now, sb.toString());
+		this.snapshot = rendered;
+		return rendered.text;
+	}
+
+	private static final class Snapshot {
+		/** The version of the lines the text was rendered from. Lines may have changed while rendering. */
+		private final long version;
+		private final long takenAt;
+		private final String text;
+
+		private Snapshot(long version, long takenAt, String text) {
+			this.version = version;
+			this.takenAt = takenAt;
+			this.text = text;
+		}
+	}
+}
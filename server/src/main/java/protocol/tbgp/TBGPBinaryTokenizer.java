@@ -0,0 +1,217 @@
+package protocol.tbgp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import tokenizer.FrameLimit;
+import tokenizer.LengthPrefixedMessageTokenizer;
+import tokenizer.NegotiatingMessageTokenizer;
+import tokenizer.StringMessage;
+
+/**
+ * The binary encoding of TBGP, in length-prefixed frames. The payload of a frame is:
+ * <UL>
+ * <LI>an opcode byte, the index of the command in {@link #OPCODES}. Opcode 0 is followed by the command
+ * itself, as a varint length and UTF-8 bytes, for commands that have no opcode.
+ * <LI>the parameter, as a varint of its length plus one, followed by its UTF-8 bytes. A length of 0 stands
+ * for a command without a parameter.
+ * </UL>
+ * Varints are unsigned, 7 bits per byte, least significant group first, with the high bit set on every
+ * byte but the last.<br/>
+ * A client asks for the binary encoding by starting the connection with the preamble of
+ * {@link NegotiatingMessageTokenizer}, with the {@link #FLAG_BINARY} flag.
+ */
+public class TBGPBinaryTokenizer extends LengthPrefixedMessageTokenizer<StringMessage> {
+	/** The flag of the negotiation preamble that selects the binary encoding */
+	public static final int FLAG_BINARY = 0x01;
+	
+	/**
+	 * The commands, by opcode. Opcode 0 is reserved for commands that are sent by name. New commands get new
+	 * opcodes at the end, so the opcodes of a client stay valid.
+	 */
+	public static final String[] OPCODES = { null, "NICK", "JOIN", "MSG", "LISTGAMES", "STARTGAME", "TXTRESP",
+			"SELECTRESP", "QUIT", "PONG", "STATS", "SYSMSG", "USRMSG", "GAMEMSG", "ASKTXT", "ASKCHOICES", "PING",
+			"SPECTATE", "LISTROOMS" };
+	
+	private static final Map<String, Integer> OPCODES_BY_COMMAND = new HashMap<>();
+	
+	/** The commands of the opcodes, identified up front */
+	private static final TBGPCommand[] OPCODE_COMMANDS = new TBGPCommand[OPCODES.length];
+	static {
+		for (int i = 1; i < OPCODES.length; i++) {
+			OPCODES_BY_COMMAND.put(OPCODES[i], i);
+			OPCODE_COMMANDS[i] = TBGPCommand.match(OPCODES[i], 0, OPCODES[i].length());
+		}
+	}
+	
+	public TBGPBinaryTokenizer() {
+		super();
+	}
+	
+	/**
+	 * @param limit the limit on the size of a frame, or null for no limit
+	 */
+	public TBGPBinaryTokenizer(FrameLimit limit) {
+		super(limit);
+	}
+	
+	/**
+	 * The encoding is stateless, so all binary connections share their broadcast messages
+	 */
+	@Override
+	public Object getFormat() {
+		return TBGPBinaryTokenizer.class;
+	}
+	
+	@Override
+	protected StringMessage decodePayload(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return new TBGPStringMessage(new TBGPMessage("", null));
+		}
+		int end = offset + length;
+		int[] pos = { offset };
+		int opcode = bytes[pos[0]++] & 0xFF;
+		String command;
+		TBGPCommand code = null;
+		if (opcode == 0) {
+			int commandLength = clamp(readVarint(bytes, pos, end), end - pos[0]);
+			command = new String(bytes, pos[0], commandLength, StandardCharsets.UTF_8).toUpperCase();
+			pos[0] += commandLength;
+		} else if (opcode < OPCODES.length) {
+			command = OPCODES[opcode];
+			code = OPCODE_COMMANDS[opcode];
+		} else {
+			command = "UNKNOWN";
+		}
+		String param = null;
+		if (pos[0] < end) {
+			int paramLength = readVarint(bytes, pos, end) - 1;
+			if (paramLength >= 0) {
+				// like the text form, the parameters are case insensitive
+				param = new String(bytes, pos[0], clamp(paramLength, end - pos[0]), StandardCharsets.UTF_8)
+						.toLowerCase();
+			}
+		}
+		if (code == null) {
+			code = TBGPCommand.match(command, 0, command.length());
+		}
+		if (param == null && code != TBGPCommand.UNKNOWN) {
+			return code.getBareMessage();
+		}
+		return new TBGPStringMessage(new TBGPMessage(command, code, param));
+	}
+	
+	@Override
+	protected boolean encodePayload(StringMessage msg, ByteBuffer out) {
+		TBGPMessage message = TBGPStringMessage.parse(msg);
+		Integer opcode = OPCODES_BY_COMMAND.get(message.getCommand());
+		if (opcode != null) {
+			if (!out.hasRemaining()) {
+				return false;
+			}
+			out.put(opcode.byteValue());
+		} else {
+			if (!out.hasRemaining()) {
+				return false;
+			}
+			out.put((byte) 0);
+			if (!putString(message.getCommand(), out, 0)) {
+				return false;
+			}
+		}
+		if (message.getParam() == null) {
+			return putVarint(0, out);
+		}
+		return putString(message.getParam(), out, 1);
+	}
+	
+	private static int readVarint(byte[] bytes, int[] pos, int end) {
+		int value = 0;
+		int shift = 0;
+		while (pos[0] < end && shift < 32) {
+			byte b = bytes[pos[0]++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		return value;
+	}
+	
+	/**
+	 * @return the given length, cut to the bytes that are left in the frame
+	 */
+	private static int clamp(int length, int left) {
+		return Math.max(0, Math.min(length, left));
+	}
+	
+	private static boolean putVarint(int value, ByteBuffer out) {
+		while ((value & ~0x7F) != 0) {
+			if (!out.hasRemaining()) {
+				return false;
+			}
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		if (!out.hasRemaining()) {
+			return false;
+		}
+		out.put((byte) value);
+		return true;
+	}
+	
+	/**
+	 * Writes a string as a varint of its UTF-8 length (plus the given bias), followed by its UTF-8 bytes
+	 */
+	private static boolean putString(String s, ByteBuffer out, int bias) {
+		int length = utf8Length(s);
+		if (!putVarint(length + bias, out) || out.remaining() < length) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				out.put((byte) '?');
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return true;
+	}
+	
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
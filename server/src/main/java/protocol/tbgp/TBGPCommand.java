@@ -0,0 +1,102 @@
+package protocol.tbgp;
+
+/**
+ * The commands a client may send.<br/>
+ * A command is identified straight from its characters or bytes, case insensitively, through a table of the
+ * commands by length - no String is built for it. Every command also has a shared message without a
+ * parameter, so a command that carries none costs no allocation at all.
+ */
+public enum TBGPCommand {
+	NICK,
+	JOIN,
+	SPECTATE,
+	MSG,
+	LISTGAMES,
+	LISTROOMS,
+	STARTGAME,
+	TXTRESP,
+	SELECTRESP,
+	QUIT,
+	PONG,
+	STATS,
+	/** Any command that is not one of the above */
+	UNKNOWN;
+
+	/** The commands, by the length of their names */
+	private static final TBGPCommand[][] BY_LENGTH;
+	static {
+		int maxLength = 0;
+		for (TBGPCommand command : values()) {
+			maxLength = Math.max(maxLength, command.name().length());
+		}
+		BY_LENGTH = new TBGPCommand[maxLength + 1][];
+		for (TBGPCommand command : values()) {
+			if (command == UNKNOWN) {
+				continue;
+			}
+			int length = command.name().length();
+			TBGPCommand[] sameLength = BY_LENGTH[length] == null ? new TBGPCommand[0] : BY_LENGTH[length];
+			TBGPCommand[] grown = new TBGPCommand[sameLength.length + 1];
+			System.arraycopy(sameLength, 0, grown, 0, sameLength.length);
+			grown[sameLength.length] = command;
+			BY_LENGTH[length] = grown;
+			command.bare = new TBGPStringMessage(new TBGPMessage(command.name(), command, null));
+		}
+	}
+
+	private TBGPStringMessage bare;
+
+	/**
+	 * @return the command without a parameter, shared by all the connections
+	 */
+	public TBGPStringMessage getBareMessage() {
+		return this.bare;
+	}
+
+	/**
+	 * Identifies the command in the given range of ASCII bytes, ignoring case
+	 * @return the command, or UNKNOWN
+	 */
+	public static TBGPCommand match(byte[] bytes, int offset, int length) {
+		if (length >= BY_LENGTH.length || BY_LENGTH[length] == null) {
+			return UNKNOWN;
+		}
+		for (TBGPCommand command : BY_LENGTH[length]) {
+			String name = command.name();
+			int i = 0;
+			while (i < length && toUpper(bytes[offset + i]) == name.charAt(i)) {
+				i++;
+			}
+			if (i == length) {
+				return command;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Identifies the command in the given range of characters, ignoring case
+	 * @return the command, or UNKNOWN
+	 */
+	public static TBGPCommand match(CharSequence chars, int start, int end) {
+		int length = end - start;
+		if (length >= BY_LENGTH.length || BY_LENGTH[length] == null) {
+			return UNKNOWN;
+		}
+		for (TBGPCommand command : BY_LENGTH[length]) {
+			String name = command.name();
+			int i = 0;
+			while (i < length && toUpper(chars.charAt(start + i)) == name.charAt(i)) {
+				i++;
+			}
+			if (i == length) {
+				return command;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	private static int toUpper(int c) {
+		return c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c;
+	}
+}
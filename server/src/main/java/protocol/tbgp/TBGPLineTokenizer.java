@@ -0,0 +1,52 @@
+package protocol.tbgp;
+
+import java.nio.charset.Charset;
+
+import tokenizer.FrameLimit;
+import tokenizer.LineMessageTokenizer;
+import tokenizer.StringMessage;
+
+/**
+ * The text encoding of TBGP: a command per line.<br/>
+ * A line is parsed straight from its bytes: the command is identified by {@link TBGPCommand}, and only the
+ * parameter is decoded into a String. A known command without a parameter allocates nothing. Line breaks
+ * (CR) at the end of a line are ignored, and a line with a line break anywhere else is parsed as text.
+ */
+public class TBGPLineTokenizer extends LineMessageTokenizer {
+	
+	/**
+	 * @param limit the limit on the size of a line, or null for no limit
+	 */
+	public TBGPLineTokenizer(Charset charset, FrameLimit limit) {
+		super("\n", charset, limit);
+	}
+	
+	@Override
+	protected StringMessage decode(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		while (end > offset && bytes[end - 1] == '\r') {
+			end--;
+		}
+		int spacePos = -1;
+		for (int i = offset; i < end; i++) {
+			if (bytes[i] == '\r') {
+				return new TBGPStringMessage(new TBGPMessage(new String(bytes, offset, length, getCharset())));
+			}
+			if (bytes[i] == ' ' && spacePos == -1) {
+				spacePos = i;
+			}
+		}
+		int commandEnd = spacePos == -1 ? end : spacePos;
+		TBGPCommand code = TBGPCommand.match(bytes, offset, commandEnd - offset);
+		if (spacePos == -1 && code != TBGPCommand.UNKNOWN) {
+			return code.getBareMessage();
+		}
+		String command = code != TBGPCommand.UNKNOWN ? code.name() 
+				: new String(bytes, offset, commandEnd - offset, getCharset()).toUpperCase();
+		String param = null;
+		if (spacePos != -1) {
+			param = new String(bytes, spacePos + 1, end - spacePos - 1, getCharset()).toLowerCase();
+		}
+		return new TBGPStringMessage(new TBGPMessage(command, code, param));
+	}
+}
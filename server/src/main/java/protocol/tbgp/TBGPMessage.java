@@ -5,40 +5,107 @@ package protocol.tbgp;
  */
 public class TBGPMessage {
 	private final String command;
-	private final String param;
-	
+	private final TBGPCommand code;
+	private String param;
+
+	/**
+	 * The text the parameter is sliced from, once it is asked for, or null if the parameter is known
+	 */
+	private final String source;
+	private final int paramStart;
+
 	/**
-	 * Constructs a TBGPCommand based on the given message string
+	 * Constructs a TBGPCommand based on the given message string. The parameter is only cut from the
+	 * string when it is asked for.
 	 */
 	public TBGPMessage(String msg) {
-		msg = msg.replaceAll("(\\r|\\n)", "");
+		msg = stripLineBreaks(msg);
 		int spacePos = msg.indexOf(' ');
-		if (spacePos == -1) { 
-			this.command = msg.toUpperCase();
-			this.param = null;
-		} else { 
-			this.command = msg.substring(0, spacePos).toUpperCase();
-			this.param = msg.substring(spacePos+1).toLowerCase();
-		}
+		int commandEnd = spacePos == -1 ? msg.length() : spacePos;
+		this.code = TBGPCommand.match(msg, 0, commandEnd);
+		this.command = this.code != TBGPCommand.UNKNOWN ? this.code.name() : msg.substring(0, commandEnd).toUpperCase();
+		this.source = spacePos == -1 ? null : msg;
+		this.paramStart = spacePos + 1;
 	}
-	
+
 	/**
 	 * Constructors a TBGPCommand according to the given command and parameter
 	 */
 	public TBGPMessage(String command, String param) {
+		this(command, TBGPCommand.match(command, 0, command.length()), param);
+	}
+
+	/**
+	 * Constructors a TBGPCommand according to the given command, already identified, and parameter
+	 */
+	public TBGPMessage(String command, TBGPCommand code, String param) {
 		this.command = command;
+		this.code = code;
 		this.param = param;
+		this.source = null;
+		this.paramStart = 0;
+	}
+
+	/**
+	 * Parses a message string, like the constructor. A known command without a parameter is not allocated,
+	 * but shared.
+	 */
+	public static TBGPMessage parse(String msg) {
+		if (msg.indexOf(' ') == -1) {
+			int end = msg.length();
+			while (end > 0 && (msg.charAt(end - 1) == '\r' || msg.charAt(end - 1) == '\n')) {
+				end--;
+			}
+			TBGPCommand code = TBGPCommand.match(msg, 0, end);
+			if (code != TBGPCommand.UNKNOWN) {
+				return code.getBareMessage().getTBGPMessage();
+			}
+		}
+		return new TBGPMessage(msg);
 	}
 
 	public String getCommand() {
 		return command;
 	}
 
+	/**
+	 * @return the command, as identified when the message was parsed
+	 */
+	public TBGPCommand getCode() {
+		return code;
+	}
+
 	public String getParam() {
+		String param = this.param;
+		if (param == null && this.source != null) {
+			// Strings are immutable, so a race only cuts the same parameter twice
+			param = this.source.substring(this.paramStart).toLowerCase();
+			this.param = param;
+		}
 		return param;
 	}
-	
+
 	public String toString() {
+		if (getParam() == null) {
+			return getCommand();
+		}
 		return getCommand() + " " + getParam();
 	}
+
+	/**
+	 * @return the given string without any CR and LF characters - the same string, if it has none
+	 */
+	private static String stripLineBreaks(String msg) {
+		if (msg.indexOf('\r') == -1 && msg.indexOf('\n') == -1) {
+			return msg;
+		}
+		StringBuilder sb = new StringBuilder(msg.length());
+		for (int i = 0; i < msg.length(); i++) {
+			char c = msg.charAt(i);
+			if (c != '\r' && c != '\n') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
 }
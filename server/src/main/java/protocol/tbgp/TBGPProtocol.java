@@ -1,15 +1,28 @@
 package protocol.tbgp;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import protocol.AsyncServerProtocol;
 import protocol.ProtocolCallback;
+import protocol.tbgp.events.ProcessMessageEvent;
 import tokenizer.StringMessage;
 
 /**
- * a simple implementation of the server protocol interface
+ * a simple implementation of the server protocol interface<br/>
+ * The commands of a client are processed one at a time, in order. A command that changes a room runs on the 
+ * lane of the room, and the commands that arrive meanwhile wait for it: the lane carries on with them once
+ * it is done.<br/>
+ * Every command is checked against the rate limits of the user, and a command sent into a room against the
+ * limit of the room, before it is dispatched (see {@link RateLimits}).
  */
 public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
 	
 	private enum CmdResult {
 		ACCEPTED,
@@ -18,16 +31,43 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 		DONT_ANSWER
 	}
 
-	private boolean _shouldClose = false;
-	private boolean _connectionTerminated = false;
+	/**
+	 * A command that waits for the commands before it. A null message stands for the termination of the
+	 * connection, which removes the user after the commands before it.
+	 */
+	private static class PendingCommand {
+		private final StringMessage msg;
+		private final ProtocolCallback<StringMessage> callback;
+		/** True once the command was checked against the limits of the user, and of its room */
+		private boolean userChecked = false;
+		private boolean roomChecked = false;
+		
+		private PendingCommand(StringMessage msg, ProtocolCallback<StringMessage> callback) {
+			this.msg = msg;
+			this.callback = callback;
+		}
+	}
+
+	private volatile boolean _shouldClose = false;
+	private volatile boolean _connectionTerminated = false;
+	
+	/** The commands that arrived while a command is being processed, guarded by this */
+	private final Queue<PendingCommand> _pending = new ArrayDeque<>();
+	/** True while a command is being processed, guarded by this */
+	private boolean _busy = false;
 	
 	private boolean _isConnected = false;
 	private String _connectedUserNick = null;
 	private TBGPServer _tbgpServer;
 	
+	/** The rate limits of the user, created as the commands arrive. Only used by the command being processed. */
+	private final TokenBucket _userBucket;
+	private final Map<TBGPCommand, TokenBucket> _commandBuckets = new EnumMap<>(TBGPCommand.class);
+	
 	public TBGPProtocol(TBGPServer server) {
 		super();
 		this._tbgpServer = server;
+		this._userBucket = server.getRateLimits().newUserBucket();
 	}
 
 	/**
@@ -43,11 +83,175 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 		if (this._connectionTerminated) {
 			return;
 		}
+		submit(new PendingCommand(msg, callback));
+	}
+	
+	/**
+	 * Processes the command now, unless another command is being processed, in which case it waits for it
+	 */
+	private void submit(PendingCommand command) {
+		synchronized (this) {
+			if (this._busy) {
+				this._pending.add(command);
+				return;
+			}
+			this._busy = true;
+		}
+		processCommands(command);
+	}
+	
+	/**
+	 * Processes the given command, and the commands that wait for it, in order. A command that changes a 
+	 * room is handed to the room's lane, which carries on with the commands after it.<br/>
+	 * A command that fails is dropped, and the commands after it go on.
+	 */
+	private void processCommands(PendingCommand command) {
+		while (true) {
+			try {
+				runCommands(command);
+				return;
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "a command of " + this._connectedUserNick + " failed", e);
+			}
+			command = nextCommand();
+			if (command == null) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Runs the commands of {@link #processCommands(PendingCommand)}, until none is left, or one is handed to a
+	 * room's lane
+	 */
+	private void runCommands(PendingCommand command) {
+		while (true) {
+			TBGPMessage cmd = command.msg == null ? null : TBGPStringMessage.parse(command.msg);
+			// QUIT is never limited, so a user can always leave
+			if (cmd != null && !command.userChecked && cmd.getCode() != TBGPCommand.QUIT) {
+				command.userChecked = true;
+				if (!admit(cmd, command.callback, this._userBucket)
+						|| !admit(cmd, command.callback, getCommandBucket(cmd.getCode()))) {
+					command = nextCommand();
+					if (command == null) {
+						return;
+					}
+					continue;
+				}
+			}
+			// in a cluster, the commands of a remote room run on its node, which answers the client
+			boolean forwarded = cmd != null && this._connectedUserNick != null && !this._connectionTerminated
+					&& this._tbgpServer.forwardCommand(this._connectedUserNick, cmd);
+			TBGPRoom room = null;
+			if (!forwarded && this._connectedUserNick != null) {
+				room = cmd == null ? this._tbgpServer.getUserRoom(this._connectedUserNick)
+						: this._tbgpServer.getCommandRoom(this._connectedUserNick, cmd.getCode(), cmd.getParam());
+			}
+			if (room != null && cmd != null && !command.roomChecked) {
+				command.roomChecked = true;
+				if (this._tbgpServer.getRateLimits().isRoomCommand(cmd.getCode())
+						&& !admit(cmd, command.callback, room.getRateBucket())) {
+					command = nextCommand();
+					if (command == null) {
+						return;
+					}
+					continue;
+				}
+			}
+			if (room != null && !this._tbgpServer.inRoomLane(room)) {
+				final PendingCommand next = command;
+				this._tbgpServer.executeInRoom(room, () -> processCommands(next));
+				return;
+			}
+			if (room != null && room.isClosed()) {
+				// the room was reclaimed before the command got to it - look it up again
+				continue;
+			}
+			
+			try {
+				if (cmd == null) {
+					if (this._connectedUserNick != null) {
+						this._tbgpServer.removeUser(this._connectedUserNick);
+					}
+				} else if (forwarded) {
+					this._tbgpServer.countCommand(cmd.getCode());
+				} else if (!this._connectionTerminated) {
+					processCommand(cmd, command.callback);
+				}
+			} finally {
+				if (room != null && cmd != null
+						&& (cmd.getCode() == TBGPCommand.JOIN || cmd.getCode() == TBGPCommand.SPECTATE)) {
+					// the room may have been created for a user that did not get in, or never tried to
+					this._tbgpServer.reclaimIfEmpty(room);
+				}
+			}
+			
+			command = nextCommand();
+			if (command == null) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return The command that waits next, or null if none does, in which case the protocol is no longer busy
+	 */
+	private PendingCommand nextCommand() {
+		synchronized (this) {
+			PendingCommand command = this._pending.poll();
+			if (command == null) {
+				this._busy = false;
+			}
+			return command;
+		}
+	}
+	
+	private TokenBucket getCommandBucket(TBGPCommand command) {
+		TokenBucket bucket = this._commandBuckets.get(command);
+		if (bucket == null && !this._commandBuckets.containsKey(command)) {
+			bucket = this._tbgpServer.getRateLimits().newCommandBucket(command);
+			this._commandBuckets.put(command, bucket);
+		}
+		return bucket;
+	}
+	
+	/**
+	 * Takes a token of the bucket for the command. Over the limit, the command is rejected, unless the policy
+	 * is to pause, and the connection can stop reading until the bucket is out of debt.
+	 * @param bucket The bucket, or null if there is no limit
+	 * @return True if the command should be processed
+	 */
+	private boolean admit(TBGPMessage cmd, ProtocolCallback<StringMessage> callback, TokenBucket bucket) {
+		if (bucket == null) {
+			return true;
+		}
+		if (this._tbgpServer.getRateLimits().getPolicy() == RateLimits.Policy.PAUSE) {
+			long debtMillis = bucket.acquire();
+			if (debtMillis == 0) {
+				return true;
+			}
+			this._tbgpServer.countThrottled();
+			if (callback.suspendReading(debtMillis)) {
+				return true;
+			}
+		} else if (bucket.tryAcquire()) {
+			return true;
+		} else {
+			this._tbgpServer.countThrottled();
+		}
+		this._tbgpServer.countCommand(cmd.getCode());
+		this.sendMessage(callback, new TBGPMessage("SYSMSG", cmd.getCommand() + " " + CmdResult.REJECTED.name() + " "));
+		return false;
+	}
+	
+	private void processCommand(TBGPMessage cmd, ProtocolCallback<StringMessage> callback) {
+		ProcessMessageEvent event = new ProcessMessageEvent();
+		event.begin();
 
 		CmdResult res;
 		StringBuilder optionalInfo = new StringBuilder();
-		TBGPMessage cmd = new TBGPMessage(msg.toString());
-		if (this.isEnd(new StringMessage(cmd.getCommand()))) {
+		this._tbgpServer.countCommand(cmd.getCode());
+		if (cmd.getCode() == TBGPCommand.QUIT) {
 			this._shouldClose = true;
 			connectionTerminated();
 			res = CmdResult.ACCEPTED;
@@ -60,6 +264,27 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 					" " + optionalInfo.toString());
 			this.sendMessage(callback, message);
 		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.command = cmd.getCommand();
+			event.result = res.name();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Identifies the client as the given user without a NICK command - for a user that is connected to 
+	 * another node of a cluster, whose commands are forwarded to this node.
+	 * @return True if the user was added, false if the nickname is taken or the client was identified before
+	 */
+	public synchronized boolean login(String nick, ProtocolCallback<StringMessage> callback) {
+		if (this._isConnected || !this._tbgpServer.addUser(nick, callback)) {
+			return false;
+		}
+		this._isConnected = true;
+		this._connectedUserNick = nick;
+		return true;
 	}
 
 	/**
@@ -70,7 +295,7 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 	 */
 	@Override
 	public boolean isEnd(StringMessage msg) {
-		return msg.toString().toUpperCase().equals("QUIT");
+		return msg.toString().equalsIgnoreCase("QUIT");
 	}
 
 	/**
@@ -89,40 +314,68 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 	 */
 	@Override
 	public void connectionTerminated() {
-		if (this._connectedUserNick != null) {
-			this._tbgpServer.removeUser(this._connectedUserNick);
+		synchronized (this) {
+			if (this._connectionTerminated) {
+				return;
+			}
+			this._connectionTerminated = true;
 		}
-		this._connectionTerminated = true;
+		// the user is removed after the commands that wait, which are skipped
+		submit(new PendingCommand(null, null));
+	}
+	
+	/**
+	 * The client has been idle for a while - send it a heartbeat, which it should answer with PONG.
+	 * A client that answers keeps the connection from being reaped as idle.
+	 */
+	@Override
+	public void connectionIdle(ProtocolCallback<StringMessage> callback) {
+		if (this._connectionTerminated || this._shouldClose) {
+			return;
+		}
+		this.sendMessage(callback, new TBGPMessage("PING", null));
 	}
 	
 	private CmdResult handleCmd(TBGPMessage cmd, ProtocolCallback<StringMessage> callback, StringBuilder optionalInfo) {		
+		if (cmd.getCode() == TBGPCommand.PONG) {
+			// An answer to a heartbeat. Receiving it is all that matters.
+			return CmdResult.DONT_ANSWER;
+		}
+		
 		if (_isConnected) {
 			boolean succeeded;
-			switch (cmd.getCommand()) {
-			case "JOIN":
+			switch (cmd.getCode()) {
+			case JOIN:
 				succeeded = _tbgpServer.handleJoinRequest(this._connectedUserNick, cmd.getParam());
 				break;
-			case "MSG":
+			case SPECTATE:
+				succeeded = _tbgpServer.handleSpectateRequest(this._connectedUserNick, cmd.getParam());
+				break;
+			case MSG:
 				succeeded = _tbgpServer.handleMsgRequest(this._connectedUserNick, cmd.getParam());
 				break;
-			case "LISTGAMES":
+			case LISTGAMES:
 				String gameList = _tbgpServer.listGames();
 				optionalInfo.append(gameList);
 				succeeded = true;
 				break;
-			case "STARTGAME":
+			case LISTROOMS:
+				optionalInfo.append(_tbgpServer.listRooms());
+				succeeded = true;
+				break;
+			case STARTGAME:
 				succeeded = _tbgpServer.startGame(this._connectedUserNick, cmd.getParam());
 				if (succeeded) {
 					return CmdResult.DONT_ANSWER;
 				}
 				break;
-			case "TXTRESP":
+			case TXTRESP:
 				succeeded = _tbgpServer.handleTextResponse(this._connectedUserNick, cmd.getParam());
 				if (succeeded) {
 					return CmdResult.DONT_ANSWER;
 				}
 				break;
-			case "SELECTRESP":
+			case SELECTRESP:
 				try {
 					succeeded = _tbgpServer.handleSelectResponse(this._connectedUserNick, Integer.decode(cmd.getParam()));
 					if (succeeded) {
@@ -132,7 +385,14 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 					succeeded = false;
 				}
 				break;
-			case "NICK":
+			case STATS:
+				// Admins only - the parameter is the admin password
+				succeeded = _tbgpServer.isAdminPassword(cmd.getParam());
+				if (succeeded) {
+					optionalInfo.append(_tbgpServer.getStats());
+				}
+				break;
+			case NICK:
 				// The client cannot set his nick more than once. 
 				succeeded = false;
 				break;
@@ -146,7 +406,7 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 				return CmdResult.REJECTED;
 			}
 		} else {
-			if (cmd.getCommand().equals("NICK")) {
+			if (cmd.getCode() == TBGPCommand.NICK) {
 				if (_tbgpServer.addUser(cmd.getParam(), callback)) {
 					this._isConnected = true;
 					this._connectedUserNick = cmd.getParam(); 
@@ -162,7 +422,7 @@ public class TBGPProtocol implements AsyncServerProtocol<StringMessage> {
 	
 	private void sendMessage(ProtocolCallback<StringMessage> callback, TBGPMessage msg) {
 		try {
-			callback.sendMessage(new StringMessage(msg.toString()));
+			callback.sendMessage(new TBGPStringMessage(msg));
 		} catch (IOException e) {
 			this._shouldClose = true;
 			System.out.print("IOException occurred when sending message to client:");
@@ -1,20 +1,70 @@
 package protocol.tbgp;
 
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Function;
 
+import protocol.BroadcastMessage;
 import protocol.tbgp.games.TBGPGame;
+import protocol.tbgp.state.RoomRecord;
+import protocol.tbgp.state.RoomStateStore;
+import tokenizer.StringMessage;
 
+/**
+ * A room of users.<br/>
+ * The room and its game are only changed by the tasks of the room's lane (see {@link RoomLanes}), one at a 
+ * time, so they need no locks, and rooms never contend with each other. The users are kept in a 
+ * copy-on-write set, so that any other thread may still iterate over a consistent snapshot of them.<br/>
+ * Besides its users - the players - a room may have many spectators, which get the messages of the room and 
+ * its game, but take no part in them. The messages of the room are sent to the players right away, and to 
+ * the spectators by the workers of {@link RoomFanout}, from an immutable snapshot of them that is only 
+ * taken again after spectators come or go.<br/>
+ * With a {@link RoomStateStore}, every change of the players or the game is saved, so the room can be 
+ * restored after a restart. The spectators are not saved.
+ */
 public class TBGPRoom {
 	private final String name;
 	
-	private Set<TBGPUser> users;
-	private TBGPGame game;
+	private final Set<TBGPUser> users;
+	private volatile TBGPGame game;
+	private final RoomLanes.RoomMailbox mailbox;
 	
-	public TBGPRoom(String name) {
+	private final RoomFanout fanout;
+	private final RoomLobby lobby;
+	private final RoomStateStore store;
+	private final RoomLanes lanes;
+	/** Limits the commands the users send into the room, or null */
+	private final TokenBucket rateBucket;
+	/** Set once the room is empty and reclaimed. A closed room takes no users, and is replaced by a new one. */
+	private volatile boolean closed;
+	private final Set<TBGPUser> spectators;
+	/** The spectators, split into the tiers of the fan-out workers, or null if they changed since */
+	private TBGPUser[][] spectatorTiers;
+	
+	/**
+	 * @param lanes The lanes that run the tasks of the room
+	 * @param fanout The workers that send the messages of the room to its spectators
+	 * @param lobby The list of the rooms, which the room keeps up to date
+	 * @param store Saves the state of the room, or null if it is not kept
+	 * @param rateBucket Limits the commands the users send into the room, or null for no limit
+	 */
+	public TBGPRoom(String name, RoomLanes lanes, RoomFanout fanout, RoomLobby lobby, RoomStateStore store,
+			TokenBucket rateBucket) {
 		this.name = name;
-		this.users = new LinkedHashSet<>();
+		this.lanes = lanes;
+		this.mailbox = lanes.createMailbox(name);
+		this.fanout = fanout;
+		this.lobby = lobby;
+		this.store = store;
+		this.rateBucket = rateBucket;
+		this.closed = false;
+		this.users = new CopyOnWriteArraySet<>();
+		this.spectators = new LinkedHashSet<>();
+		this.spectatorTiers = null;
 		this.game = null;
 	}
 	
@@ -25,24 +75,174 @@ public class TBGPRoom {
 	public String getName() {
 		return name;
 	}
+	
+	/**
+	 * @return The limit on the commands the users send into the room, or null if there is none
+	 */
+	public TokenBucket getRateBucket() {
+		return rateBucket;
+	}
+	
+	RoomLanes.RoomMailbox getMailbox() {
+		return mailbox;
+	}
 
-	public void addUser(TBGPUser user) {
+	/**
+	 * Adds the user to the room, unless the user is already in a room, a game is in progress, or the room 
+	 * is closed
+	 * @return True if the user joined the room
+	 */
+	public boolean join(TBGPUser user) {
+		if (this.closed || this.game != null || user.getRoom() != null) {
+			return false;
+		}
 		users.add(user);
+		user.setRoom(this);
+		lobby.update(this);
+		save();
+		return true;
+	}
+	
+	/**
+	 * Adds the user to the spectators of the room, unless the user is already in a room. Unlike joining, 
+	 * a user may watch a game that is in progress.
+	 * @return True if the user became a spectator
+	 */
+	public boolean spectate(TBGPUser user) {
+		if (this.closed || user.getRoom() != null) {
+			return false;
+		}
+		spectators.add(user);
+		user.setRoom(this, true);
+		spectatorTiers = null;
+		lobby.update(this);
+		return true;
 	}
 	
 	public void removeUser(TBGPUser user) {
-		users.remove(user);
+		if (users.remove(user)) {
+			lobby.update(this);
+			save();
+		} else if (spectators.remove(user)) {
+			spectatorTiers = null;
+			lobby.update(this);
+		}
+	}
+	
+	/**
+	 * @return True if the room has no players and no spectators
+	 */
+	public boolean isEmpty() {
+		return users.isEmpty() && spectators.isEmpty();
+	}
+	
+	/**
+	 * @return True if the room was reclaimed. A user that finds the room closed should look it up again.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Closes the room, which must be empty, and removes it from the lobby. A game in progress is dropped.
+	 */
+	void close() {
+		if (!isEmpty()) {
+			throw new InvalidParameterException();
+		}
+		this.closed = true;
+		this.game = null;
+		lobby.remove(this);
+		if (store != null) {
+			store.remove(name);
+		}
 	}
 	
+	/**
+	 * Puts a player back into a room that is being restored, before the room takes any commands
+	 */
+	public void restoreUser(TBGPUser user) {
+		users.add(user);
+		user.setRoom(this);
+		lobby.update(this);
+	}
+	
+	/**
+	 * Saves the state of the room, and of its game. Called by the game whenever its state changes, and by the
+	 * room whenever players come and go.
+	 */
+	public void save() {
+		if (store == null || closed) {
+			return;
+		}
+		List<String> players = new ArrayList<>(users.size());
+		for (TBGPUser user : users) {
+			players.add(user.getNickname());
+		}
+		TBGPGame game = this.game;
+		store.update(new RoomRecord(name, players, game == null ? null : game.getName(), 
+				game == null ? null : game.saveState()));
+	}
+	
+	public int getSpectatorCount() {
+		return spectators.size();
+	}
+	
+	/**
+	 * Sends a message to the players of the room, except one, and to its spectators. The message is encoded 
+	 * only once for all of them.
+	 * @param except a player that should not get the message, or null
+	 */
+	public void broadcast(TBGPMessage msg, TBGPUser except) {
+		BroadcastMessage<StringMessage> broadcast = new BroadcastMessage<>(new TBGPStringMessage(msg));
+		for (TBGPUser user : users) {
+			if (user != except) {
+				user.sendBroadcast(broadcast);
+			}
+		}
+		if (spectatorTiers == null) {
+			spectatorTiers = fanout.partition(spectators);
+		}
+		// closes the message once the spectators got it
+		fanout.send(spectatorTiers, broadcast);
+	}
+	
+	/**
+	 * Runs a task of the game on the lane of the room, once the delay passed - unless the timer is cancelled,
+	 * or the room is reclaimed, before that
+	 * @return The timer, which the game may cancel
+	 */
+	public RoomLanes.Timeout schedule(Runnable task, long delayMillis) {
+		return lanes.schedule(this, task, delayMillis);
+	}
+	
+	/**
+	 * @return The users of the room, without its spectators. Iterating over it is safe while users join and leave.
+	 */
 	public Set<TBGPUser> getUsers() {
 		return users;
 	}
 	
+	/**
+	 * Starts a game, unless a game is in progress
+	 * @param game Creates the game. It is only called if the game can start, before anyone can join.
+	 * @return True if the game started
+	 */
+	public boolean tryStartGame(Function<TBGPRoom, TBGPGame> game) {
+		if (this.game != null) {
+			return false;
+		}
+		startGame(game.apply(this));
+		return true;
+	}
+	
 	public void startGame(TBGPGame game) {
 		if (this.game != null) {
 			throw new InvalidParameterException();
 		}
 		this.game = game;
+		lobby.update(this);
+		save();
 	}
 	
 	public void stopGame() {
@@ -50,5 +250,7 @@ public class TBGPRoom {
 			throw new InvalidParameterException();
 		}
 		this.game = null;
+		lobby.update(this);
+		save();
 	}
 }
@@ -1,119 +1,338 @@
 package protocol.tbgp;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
-import java.util.HashMap;
-import java.util.Map;
+import java.security.MessageDigest;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import metrics.Counter;
+import metrics.MetricsRegistry;
 import protocol.ProtocolCallback;
+import protocol.tbgp.cluster.ClusterNode;
 import protocol.tbgp.games.TBGPGame;
 import protocol.tbgp.games.TBGPGameFactory;
+import protocol.tbgp.state.RoomRecord;
+import protocol.tbgp.state.RoomStateStore;
 import tokenizer.StringMessage;
 
 /**
  * Contains the needed information about the TBGP server - all of the connected users,
- * their rooms, every room's game and so on.
+ * their rooms, every room's game and so on.<br/>
+ * The users and the rooms are kept in concurrent maps. The commands that change a room run on the room's
+ * lane (see {@link #getCommandRoom}), one at a time, so the rooms and their games need no locks, and commands
+ * of different users and rooms do not contend with each other. The messages of a room are sent to its 
+ * spectators by the workers of a {@link RoomFanout}, so a large audience does not hold the room's lane.<br/>
+ * A room is reclaimed by its lane once its last user leaves. A command that was handed to a room that was 
+ * reclaimed in the meantime finds it closed, and looks the room up again (see {@link TBGPRoom#isClosed()}).<br/>
+ * A server may be a node of a cluster, whose nodes share the rooms - see {@link ClusterNode}.<br/>
+ * With a {@link RoomStateStore}, the rooms and their games are saved as they change, and restored when the 
+ * server starts. The players of the restored rooms are kept for them while they reconnect: a client that 
+ * sends NICK with the nickname of a restored player takes its place, in its room and game.
  */
 public class TBGPServer {
-	private Map<String, TBGPRoom> rooms;
-	private Map<String, TBGPUser> users;
+	private final ConcurrentMap<String, TBGPRoom> rooms;
+	private final ConcurrentMap<String, TBGPUser> users;
 	
 	private TBGPGameFactory gameFactory; 
+	private final RoomLanes lanes;
+	private final RoomFanout fanout;
+	private final RoomLobby lobby;
+	/** The cluster the server is a node of, or null if it runs alone */
+	private volatile ClusterNode cluster;
+	/** Saves the state of the rooms, or null if it is not kept */
+	private volatile RoomStateStore stateStore;
 	
+	private final MetricsRegistry metrics;
+	/** The counters of the commands, by TBGPCommand ordinal. UNKNOWN commands are counted as "other". */
+	private final Counter[] commandCounters;
+	private final Counter reclaimedRooms;
+	private final Counter throttledCommands;
+	private final RateLimits rateLimits;
+	private final byte[] adminPassword;
+	
+	/**
+	 * Creates a server that records its metrics in the default registry. The password of the STATS command 
+	 * is taken from the system property tbgp.adminPassword - without it, STATS is disabled. The room lanes,
+	 * the fan-out workers, the lobby and the rate limits are configured by system properties as well (see 
+	 * {@link RoomLanes#fromSystemProperties()}, {@link RoomFanout#fromSystemProperties()}, 
+	 * {@link RoomLobby#fromSystemProperties()} and {@link RateLimits#fromSystemProperties()}).
+	 */
 	public TBGPServer(TBGPGameFactory gameFactory) {
-		this.rooms = new HashMap<>();
-		this.users = new HashMap<>();
+		this(gameFactory, MetricsRegistry.getDefault());
+	}
+	
+	/**
+	 * Like {@link #TBGPServer(TBGPGameFactory)}, for a server that records its metrics in the given registry - 
+	 * e.g. one of several nodes of a cluster in the same process
+	 */
+	public TBGPServer(TBGPGameFactory gameFactory, MetricsRegistry metrics) {
+		this(gameFactory, metrics, System.getProperty("tbgp.adminPassword"), 
+				RoomLanes.fromSystemProperties(), RoomFanout.fromSystemProperties(), 
+				RoomLobby.fromSystemProperties(), RateLimits.fromSystemProperties());
+	}
+	
+	/**
+	 * @param metrics The registry to count the commands in, and to report with STATS
+	 * @param adminPassword The password of the STATS command, or null to disable it
+	 * @param lanes The lanes that run the commands of the rooms
+	 * @param fanout The workers that send the messages of the rooms to their spectators
+	 * @param lobby The list of the rooms, for LISTROOMS
+	 * @param rateLimits The limits on the rate of the commands of the users and the rooms
+	 */
+	public TBGPServer(TBGPGameFactory gameFactory, MetricsRegistry metrics, String adminPassword, RoomLanes lanes,
+			RoomFanout fanout, RoomLobby lobby, RateLimits rateLimits) {
+		this.rooms = new ConcurrentHashMap<>();
+		this.users = new ConcurrentHashMap<>();
 		this.gameFactory = gameFactory;
+		this.lanes = lanes;
+		this.fanout = fanout;
+		this.lobby = lobby;
+		this.rateLimits = rateLimits;
+		this.metrics = metrics;
+		metrics.gauge("tbgp.lanes.roomMoves", lanes::getRoomMoves);
+		metrics.gauge("tbgp.fanout.pendingChunks", fanout::getPendingChunks);
+		metrics.gauge("tbgp.rooms", () -> this.rooms.size());
+		metrics.gauge("tbgp.lanes.pendingTimers", lanes::getPendingTimers);
+		metrics.gauge("tbgp.lanes.expiredTimers", lanes::getExpiredTimers);
+		this.reclaimedRooms = metrics.counter("tbgp.rooms.reclaimed");
+		this.throttledCommands = metrics.counter("tbgp.commands.throttled");
+		this.commandCounters = new Counter[TBGPCommand.values().length];
+		for (TBGPCommand command : TBGPCommand.values()) {
+			String name = command == TBGPCommand.UNKNOWN ? "other" : command.name();
+			this.commandCounters[command.ordinal()] = metrics.counter("tbgp.commands." + name);
+		}
+		// Command parameters arrive lower-cased
+		this.adminPassword = adminPassword == null ? null : 
+			adminPassword.toLowerCase().getBytes(StandardCharsets.UTF_8);
 	}
 	
-	public void removeUser(String nick) {
-		synchronized(users) {
-			TBGPUser user = this.users.get(nick);
-			if (user != null) {
-				TBGPRoom room = user.getRoom();
-				if (room != null) {
-					room.removeUser(user);
+	/**
+	 * Makes the server a node of a cluster. Called by the ClusterNode, before the server takes clients.
+	 */
+	public void setCluster(ClusterNode cluster) {
+		this.cluster = cluster;
+	}
+	
+	/**
+	 * Restores the rooms and games saved in the store, and saves them there from now on. Called before the 
+	 * server takes clients.
+	 * @param graceMillis The time the restored players have to reconnect, before they are removed
+	 */
+	public void enablePersistence(RoomStateStore store, long graceMillis) throws IOException {
+		this.stateStore = store;
+		for (RoomRecord record : store.load()) {
+			TBGPRoom room = getOrCreateRoom(record.getName());
+			for (String nick : record.getPlayers()) {
+				TBGPUser user = new TBGPUser(nick, null);
+				if (this.users.putIfAbsent(nick, user) == null) {
+					room.restoreUser(user);
+				}
+			}
+			if (record.getGame() != null) {
+				TBGPGame game = this.gameFactory.restore(record.getGame(), room, record.getGameState());
+				if (game != null) {
+					room.startGame(game);
 				}
-				
-				this.users.remove(nick);
 			}
+			this.lanes.schedule(room, () -> expireRestoredUsers(room), graceMillis);
 		}
+		store.start();
+		this.metrics.gauge("tbgp.state.journalRecords", store::getJournalRecords);
+		this.metrics.gauge("tbgp.state.snapshots", store::getSnapshots);
 	}
 	
-	public boolean addUser(String nick, ProtocolCallback<StringMessage> userCallback) {
-		synchronized (users) {
-			if (this.users.get(nick) != null) {
-				return false;
-			} else {
-				this.users.put(nick, new TBGPUser(nick, userCallback));
-				return true;
+	/**
+	 * Forwards a command of a local user to the node of its room, if the server is a node of a cluster and
+	 * the room is remote
+	 * @return True if the command was forwarded, and should not run locally
+	 */
+	public boolean forwardCommand(String nick, TBGPMessage cmd) {
+		ClusterNode cluster = this.cluster;
+		return cluster != null && cluster.forward(nick, cmd);
+	}
+	
+	/**
+	 * Sends a message to a local user, if it is still connected
+	 */
+	public void deliver(String nick, TBGPMessage msg) {
+		TBGPUser user = this.users.get(nick);
+		if (user != null) {
+			user.sendMessage(msg);
+		}
+	}
+	
+	/**
+	 * Counts a command received from a client
+	 */
+	public void countCommand(TBGPCommand command) {
+		this.commandCounters[command.ordinal()].increment();
+	}
+	
+	/**
+	 * Counts a command that was over a rate limit
+	 */
+	public void countThrottled() {
+		this.throttledCommands.increment();
+	}
+	
+	public RateLimits getRateLimits() {
+		return this.rateLimits;
+	}
+	
+	/**
+	 * @return True if the given password is the password of the STATS command
+	 */
+	public boolean isAdminPassword(String password) {
+		if (this.adminPassword == null || password == null) {
+			return false;
+		}
+		return MessageDigest.isEqual(this.adminPassword, password.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * @return All the metrics of the server, on a single line
+	 */
+	public String getStats() {
+		return this.metrics.getReport();
+	}
+	
+	/**
+	 * @return The room whose lane should run the given command of the user, or null if the command changes 
+	 *         no room. For JOIN and SPECTATE, the room is created if it does not exist yet - and reclaimed by
+	 *         the command on the lane if the user did not get in (see {@link #reclaimIfEmpty}).
+	 */
+	public TBGPRoom getCommandRoom(String nick, TBGPCommand command, String param) {
+		TBGPUser user = this.users.get(nick);
+		if (user == null) {
+			return null;
+		}
+		switch (command) {
+		case JOIN:
+		case SPECTATE:
+			if (user.getRoom() != null || param == null) {
+				return null;
+			}
+			return getOrCreateRoom(param);
+		case MSG:
+		case STARTGAME:
+		case TXTRESP:
+		case SELECTRESP:
+			return user.getRoom();
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * @return The room of the user, whose lane should remove the user, or null if the user is in no room
+	 */
+	public TBGPRoom getUserRoom(String nick) {
+		TBGPUser user = this.users.get(nick);
+		return user == null ? null : user.getRoom();
+	}
+	
+	/**
+	 * Runs a task on the lane of the room, after the tasks that were handed to the room before it
+	 */
+	public void executeInRoom(TBGPRoom room, Runnable task) {
+		this.lanes.execute(room, task);
+	}
+	
+	/**
+	 * @return True if the current thread runs the tasks of the room
+	 */
+	public boolean inRoomLane(TBGPRoom room) {
+		return this.lanes.inLane(room);
+	}
+	
+	/**
+	 * Removes the user, and reclaims its room if it was the last user there. Runs on the lane of the user's 
+	 * room (see {@link #getUserRoom}).
+	 */
+	public void removeUser(String nick) {
+		TBGPUser user = this.users.remove(nick);
+		if (user != null) {
+			TBGPRoom room = user.getRoom();
+			if (room != null) {
+				room.removeUser(user);
+				reclaimIfEmpty(room);
 			}
+			ClusterNode cluster = this.cluster;
+			if (cluster != null) {
+				cluster.userLeft(nick);
+			}
+		}
+	}
+	
+	public boolean addUser(String nick, ProtocolCallback<StringMessage> userCallback) {
+		if (nick == null) {
+			return false;
 		}
+		TBGPUser existing = this.users.putIfAbsent(nick, new TBGPUser(nick, userCallback));
+		// a restored player that comes back takes its place
+		return existing == null || existing.attach(userCallback);
 	}
 	
 	public boolean handleJoinRequest(String nick, String roomName) {
 		TBGPUser user = getUserByNick(nick);
-		if (user.getRoom() != null) {
+		if (user.getRoom() != null || roomName == null) {
 			return false;
 		}
 		
-		synchronized (rooms) {
-			TBGPRoom room = rooms.get(roomName);
-			if (room == null) {
-				room = new TBGPRoom(roomName);
-				rooms.put(roomName, room);
-			}
-			
-			if (room.getGame() != null) {
-				return false;
-			}
-			
-			room.addUser(user);
-			user.setRoom(room);
+		return getOrCreateRoom(roomName).join(user);
+	}
+	
+	/**
+	 * Makes the user a spectator of the room, creating the room if it does not exist yet
+	 */
+	public boolean handleSpectateRequest(String nick, String roomName) {
+		TBGPUser user = getUserByNick(nick);
+		if (user.getRoom() != null || roomName == null) {
+			return false;
 		}
 		
-		return true;
+		return getOrCreateRoom(roomName).spectate(user);
 	}
 	
 	public boolean handleMsgRequest(String nick, String msg) {
 		TBGPUser user = getUserByNick(nick);
-		TBGPRoom room = user.getRoom();
+		TBGPRoom room = getPlayerRoom(user);
 		if (room == null) {
 			return false;
 		}
 		
-		synchronized (room) {
-			TBGPMessage message = new TBGPMessage("USRMSG", user.getNickname() + ": " + msg); 
-			Set<TBGPUser> users = room.getUsers();
-			for (TBGPUser u : users) {
-				if (u.getNickname() != nick) {
-					u.sendMessage(message);
-				}
-			}
-			return true;
-		}
+		TBGPMessage message = new TBGPMessage("USRMSG", user.getNickname() + ": " + msg); 
+		room.broadcast(message, user);
+		return true;
 	}
 	
 	public boolean handleTextResponse(String nick, String response) {
 		TBGPUser user = getUserByNick(nick);
-		TBGPGame game = user.getRoom().getGame();
+		TBGPGame game = getGame(user);
 		if (game == null){
 			return false;
 		}
-		synchronized (game) {
-			return game.handleTextResponse(user, response);
+		if (!game.handleTextResponse(user, response)) {
+			return false;
 		}
+		user.getRoom().save();
+		return true;
 	}
 	
 	public boolean handleSelectResponse(String nick, int choice) {
 		TBGPUser user = getUserByNick(nick);
-		TBGPGame game = user.getRoom().getGame();
+		TBGPGame game = getGame(user);
 		if (game == null){
 			return false;
 		}
-		synchronized (game) {
-			return game.handleSelectResponse(user, choice);
+		if (!game.handleSelectResponse(user, choice)) {
+			return false;
 		}
+		user.getRoom().save();
+		return true;
 	}
 	
 	public String listGames() {
@@ -126,22 +345,75 @@ public class TBGPServer {
 		return gameList;
 	}
 	
+	/**
+	 * @return The rooms, with the number of their players and spectators, and their games
+	 */
+	public String listRooms() {
+		return this.lobby.list();
+	}
+	
 	public boolean startGame(String nick, String gameName) {
 		if (this.gameFactory.getSupportedGames().contains(gameName) == false) {
 			return false;
 		}
 		
 		TBGPUser user = getUserByNick(nick);
-		TBGPRoom room = user.getRoom();
+		TBGPRoom room = getPlayerRoom(user);
 		if (room == null || room.getGame() != null) {
 			return false;
 		}
 		
-		synchronized (room) {
+		return room.tryStartGame(r -> {
 			user.sendMessage(new TBGPMessage("SYSMSG", "STARTGAME ACCEPTED"));
-			room.startGame(this.gameFactory.create(gameName, room));
-			return true;
+			return this.gameFactory.create(gameName, r);
+		});
+	}
+	
+	private TBGPRoom getOrCreateRoom(String roomName) {
+		return this.rooms.computeIfAbsent(roomName, 
+				name -> new TBGPRoom(name, this.lanes, this.fanout, this.lobby, this.stateStore, 
+						this.rateLimits.newRoomBucket()));
+	}
+	
+	/**
+	 * Removes the restored players of the room that did not reconnect. Runs on the room's lane.
+	 */
+	private void expireRestoredUsers(TBGPRoom room) {
+		for (TBGPUser user : room.getUsers()) {
+			if (user.expire()) {
+				removeUser(user.getNickname());
+			}
+		}
+	}
+	
+	/**
+	 * Reclaims the room if no one is left in it, or no one got into it. Runs on the room's lane, so no one can
+	 * join the room meanwhile - later commands find it closed, and create a new room by its name.
+	 */
+	void reclaimIfEmpty(TBGPRoom room) {
+		if (room.isClosed() || !room.isEmpty()) {
+			return;
 		}
+		room.close();
+		this.lanes.releaseMailbox(room);
+		this.rooms.remove(room.getName(), room);
+		this.reclaimedRooms.increment();
+	}
+	
+	/**
+	 * @return The room the user plays in, or null if the user is not in a room, or only watches it
+	 */
+	private TBGPRoom getPlayerRoom(TBGPUser user) {
+		return user.isSpectator() ? null : user.getRoom();
+	}
+	
+	/**
+	 * @return The game the user plays in, or null if the user is not a player in a room, or no game is in 
+	 *         progress
+	 */
+	private TBGPGame getGame(TBGPUser user) {
+		TBGPRoom room = getPlayerRoom(user);
+		return room == null ? null : room.getGame();
 	}
 	
 	private TBGPUser getUserByNick(String nick) {
@@ -0,0 +1,61 @@
+package protocol.tbgp;
+
+import tokenizer.StringMessage;
+
+/**
+ * A StringMessage that carries an already parsed TBGP command, so it can be handed to a tokenizer as it is.
+ * A text tokenizer asks for the text of the message, which is only built when needed, while a binary
+ * tokenizer encodes the command and parameter directly - and decodes them directly, without any text 
+ * parsing on the way in.
+ */
+public class TBGPStringMessage extends StringMessage {
+	private final TBGPMessage tbgpMessage;
+	private volatile String text;
+	
+	public TBGPStringMessage(TBGPMessage tbgpMessage) {
+		super(null);
+		this.tbgpMessage = tbgpMessage;
+	}
+	
+	public TBGPMessage getTBGPMessage() {
+		return this.tbgpMessage;
+	}
+	
+	/**
+	 * @return the text form of the command, as sent by text clients
+	 */
+	@Override
+	public String getMessage() {
+		String text = this.text;
+		if (text == null) {
+			text = this.tbgpMessage.toString();
+			this.text = text;
+		}
+		return text;
+	}
+	
+	@Override
+	public String toString() {
+		return getMessage();
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof StringMessage && getMessage().equals(((StringMessage) other).getMessage());
+	}
+	
+	@Override
+	public int hashCode() {
+		return getMessage().hashCode();
+	}
+	
+	/**
+	 * @return the parsed command of a message, whether it was received as text or in binary
+	 */
+	public static TBGPMessage parse(StringMessage msg) {
+		if (msg instanceof TBGPStringMessage) {
+			return ((TBGPStringMessage) msg).getTBGPMessage();
+		}
+		return TBGPMessage.parse(msg.toString());
+	}
+}
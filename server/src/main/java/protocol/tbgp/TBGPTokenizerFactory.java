@@ -0,0 +1,69 @@
+package protocol.tbgp;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import tokenizer.DeflateMessageTokenizer;
+import tokenizer.FrameLimit;
+import tokenizer.MessageTokenizer;
+import tokenizer.NegotiatingMessageTokenizer;
+import tokenizer.StringMessage;
+import tokenizer.TokenizerFactory;
+
+/**
+ * Creates the tokenizers of TBGP connections: UTF-8 lines ({@link TBGPLineTokenizer}), unless the client negotiates another format on
+ * connect. The flags of the negotiation preamble are:
+ * <UL>
+ * <LI>{@link TBGPBinaryTokenizer#FLAG_BINARY} for the binary encoding
+ * <LI>{@link DeflateMessageTokenizer#FLAG_DEFLATE} for compression of the text or binary encoding
+ * </UL>
+ */
+public class TBGPTokenizerFactory implements TokenizerFactory<StringMessage> {
+	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	
+	private final FrameLimit frameLimit;
+	
+	private final int deflateThreshold;
+	
+	/**
+	 * Reads the compression threshold from the system property tokenizer.deflateThreshold
+	 * @param frameLimit the limit on the size of a frame, or null for no limit
+	 */
+	public TBGPTokenizerFactory(FrameLimit frameLimit) {
+		this(frameLimit, Integer.getInteger("tokenizer.deflateThreshold", DeflateMessageTokenizer.DEFAULT_THRESHOLD));
+	}
+	
+	/**
+	 * @param frameLimit the limit on the size of a frame, or null for no limit
+	 * @param deflateThreshold messages shorter than this are sent uncompressed on a compressed connection
+	 */
+	public TBGPTokenizerFactory(FrameLimit frameLimit, int deflateThreshold) {
+		this.frameLimit = frameLimit;
+		this.deflateThreshold = deflateThreshold;
+	}
+	
+	public MessageTokenizer<StringMessage> create() {
+		return new NegotiatingMessageTokenizer<StringMessage>(new TBGPLineTokenizer(CHARSET, this.frameLimit),
+				flags -> forFlags(flags));
+	}
+	
+	/**
+	 * Creates the tokenizer for the flags of a negotiation preamble
+	 * @return the tokenizer, or null if the flags ask for nothing this server supports
+	 */
+	private MessageTokenizer<StringMessage> forFlags(int flags) {
+		if ((flags & ~(TBGPBinaryTokenizer.FLAG_BINARY | DeflateMessageTokenizer.FLAG_DEFLATE)) != 0) {
+			return null;
+		}
+		MessageTokenizer<StringMessage> tokenizer;
+		if ((flags & TBGPBinaryTokenizer.FLAG_BINARY) != 0) {
+			tokenizer = new TBGPBinaryTokenizer(this.frameLimit);
+		} else {
+			tokenizer = new TBGPLineTokenizer(CHARSET, this.frameLimit);
+		}
+		if ((flags & DeflateMessageTokenizer.FLAG_DEFLATE) != 0) {
+			tokenizer = new DeflateMessageTokenizer<StringMessage>(tokenizer, this.deflateThreshold, this.frameLimit);
+		}
+		return tokenizer;
+	}
+}
@@ -3,13 +3,18 @@ package protocol.tbgp;
 import java.io.IOException;
 import java.security.InvalidParameterException;
 
+import protocol.BroadcastMessage;
 import protocol.ProtocolCallback;
 import tokenizer.StringMessage;
 
 public class TBGPUser {
 	private final String nickname;
-	private final ProtocolCallback<StringMessage> callback;
-	private TBGPRoom room;
+	/** The connection of the user, or null while a restored user has not come back yet */
+	private volatile ProtocolCallback<StringMessage> callback;
+	/** True once a restored user that did not come back was given up on, guarded by this */
+	private boolean expired = false;
+	private volatile TBGPRoom room;
+	private volatile boolean spectator;
 
 	public TBGPUser(String nickname, ProtocolCallback<StringMessage> callback) {
 		super();
@@ -19,9 +24,17 @@ public class TBGPUser {
 	}
 	
 	public void setRoom(TBGPRoom room) {
+		setRoom(room, false);
+	}
+	
+	/**
+	 * @param spectator True if the user only watches the room
+	 */
+	public void setRoom(TBGPRoom room, boolean spectator) {
 		if (this.room != null) {
 			throw new InvalidParameterException();
 		}
+		this.spectator = spectator;
 		this.room = room;
 	}
 
@@ -33,9 +46,60 @@ public class TBGPUser {
 		return this.room;
 	}
 	
+	/**
+	 * @return True if the user watches its room, rather than playing in it
+	 */
+	public boolean isSpectator() {
+		return this.spectator;
+	}
+	
+	/**
+	 * Gives a restored user the connection it came back on
+	 * @return True if the user was restored, and had not come back, nor expired
+	 */
+	public synchronized boolean attach(ProtocolCallback<StringMessage> callback) {
+		if (this.callback != null || this.expired) {
+			return false;
+		}
+		this.callback = callback;
+		return true;
+	}
+	
+	/**
+	 * Gives up on a restored user that did not come back
+	 * @return True if the user had not come back, and should be removed
+	 */
+	public synchronized boolean expire() {
+		if (this.callback != null) {
+			return false;
+		}
+		this.expired = true;
+		return true;
+	}
+	
 	public void sendMessage(TBGPMessage msg) {
+		ProtocolCallback<StringMessage> callback = this.callback;
+		if (callback == null) {
+			return;
+		}
+		try {
+			callback.sendMessage(new TBGPStringMessage(msg));
+		} catch (IOException e) {
+			System.out.print("IOException occurred when sending message to client " + this.nickname + ": ");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Sends a message that is sent to other users as well. The message is encoded once for all of them.
+	 */
+	public void sendBroadcast(BroadcastMessage<StringMessage> msg) {
+		ProtocolCallback<StringMessage> callback = this.callback;
+		if (callback == null) {
+			return;
+		}
 		try {
-			callback.sendMessage(new StringMessage(msg.toString()));
+			callback.sendBroadcast(msg);
 		} catch (IOException e) {
 			System.out.print("IOException occurred when sending message to client " + this.nickname + ": ");
 			e.printStackTrace();
@@ -0,0 +1,61 @@
+package protocol.tbgp;
+
+/**
+ * A token bucket: holds up to a burst of tokens, and gains tokens at a steady rate.<br/>
+ * The bucket is refilled lazily, from the time that passed, whenever a token is taken - an idle bucket costs
+ * nothing, and needs no timer.
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double burst;
+	
+	private double tokens;
+	private long lastRefill;
+	
+	/**
+	 * Creates a full bucket
+	 * @param perSecond The number of tokens gained every second
+	 * @param burst The most tokens the bucket holds
+	 */
+	public TokenBucket(double perSecond, double burst) {
+		if (perSecond <= 0 || burst < 1) {
+			throw new IllegalArgumentException("a bucket needs a positive rate, and room for a token");
+		}
+		this.tokensPerNano = perSecond / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+		this.lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Takes a token, if there is one
+	 * @return True if a token was taken
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (this.tokens < 1) {
+			return false;
+		}
+		this.tokens -= 1;
+		return true;
+	}
+	
+	/**
+	 * Takes a token, even if there is none, in which case the bucket goes into debt
+	 * @return The time until the bucket is out of debt, in milliseconds, or 0 if it is not in debt
+	 */
+	public synchronized long acquire() {
+		refill();
+		this.tokens -= 1;
+		if (this.tokens >= 0) {
+			return 0;
+		}
+		return (long) Math.ceil(-this.tokens / this.tokensPerNano / 1e6);
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.burst, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+		this.lastRefill = now;
+	}
+}
@@ -0,0 +1,28 @@
+package protocol.tbgp.cluster;
+
+import java.util.List;
+
+/**
+ * Carries batches of messages between the nodes of a cluster.<br/>
+ * A bus must deliver the batches from one node to another in the order they were sent, but may deliver 
+ * them on any thread. The nodes batch their messages themselves, so that a bus sends one packet (or 
+ * request) per batch.
+ */
+public interface ClusterBus {
+	/**
+	 * Receives the batches sent to a node
+	 */
+	interface Receiver {
+		void receive(String fromNode, List<ClusterMessage> batch);
+	}
+	
+	/**
+	 * Registers the local node of the given id, to receive the batches sent to it
+	 */
+	void register(String nodeId, Receiver receiver);
+	
+	/**
+	 * Sends a batch of messages to a node. The bus owns the list from now on.
+	 */
+	void send(String fromNode, String toNode, List<ClusterMessage> batch);
+}
@@ -0,0 +1,51 @@
+package protocol.tbgp.cluster;
+
+/**
+ * A message between the nodes of a cluster, about a user of the sending node or of the receiving node
+ */
+public final class ClusterMessage {
+	public enum Kind {
+		/** A command of a user, to the node of the user's room */
+		COMMAND,
+		/** A message to a user, from the node of the user's room */
+		REPLY,
+		/** The user disconnected - sent to the node of the user's room */
+		LEAVE
+	}
+	
+	private final Kind kind;
+	private final String nick;
+	private final String command;
+	private final String param;
+	
+	public ClusterMessage(Kind kind, String nick, String command, String param) {
+		this.kind = kind;
+		this.nick = nick;
+		this.command = command;
+		this.param = param;
+	}
+	
+	public Kind getKind() {
+		return kind;
+	}
+	
+	public String getNick() {
+		return nick;
+	}
+	
+	public String getCommand() {
+		return command;
+	}
+	
+	/**
+	 * @return The parameter of the command, or null if it has none
+	 */
+	public String getParam() {
+		return param;
+	}
+	
+	@Override
+	public String toString() {
+		return kind + " " + nick + ": " + command + (param == null ? "" : " " + param);
+	}
+}
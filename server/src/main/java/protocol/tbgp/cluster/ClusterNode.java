@@ -0,0 +1,307 @@
+package protocol.tbgp.cluster;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import protocol.ProtocolCallback;
+import protocol.tbgp.TBGPCommand;
+import protocol.tbgp.TBGPMessage;
+import protocol.tbgp.TBGPProtocol;
+import protocol.tbgp.TBGPServer;
+import protocol.tbgp.TBGPStringMessage;
+import tokenizer.StringMessage;
+
+/**
+ * A TBGPServer as one node of a cluster, that shares a single namespace of rooms with the other nodes.<br/>
+ * Every room belongs to one node, by the consistent hash of its name. The users stay on the node they are
+ * connected to, and a command of a user for a room of another node is forwarded to that node:
+ * <UL>
+ * <LI>JOIN and SPECTATE of a room of another node are forwarded to it, and from then on the room commands
+ * of the user - MSG, STARTGAME, TXTRESP and SELECTRESP - follow them there.
+ * <LI>The node of the room runs the forwarded commands of the user with a protocol of its own, as if the
+ * user was connected to it, and sends everything that protocol answers back to the user's node.
+ * <LI>When the user disconnects, the node of the room is told to remove it.
+ * </UL>
+ * The other commands, and the commands for local rooms, run locally without any change, so local rooms
+ * keep their latency. Messages to a node are queued, and sent in batches: a batch takes all the messages
+ * that were queued during the linger period, or while the previous batch was being sent.<br/>
+ * A nickname is only checked on the node the user connects to, so a forwarded user whose nickname is taken
+ * on the node of the room is rejected there. LISTROOMS and STATS show the local node only.
+ */
+public class ClusterNode implements ClusterBus.Receiver {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
+
+	/** The largest number of messages sent to a node in one batch */
+	private static final int MAX_BATCH = 512;
+
+	private final String nodeId;
+	private final ConsistentHashRing ring;
+	private final ClusterBus bus;
+	private final TBGPServer server;
+	private final long lingerMicros;
+
+	/** The remote room nodes of the local users that joined a remote room, by nickname */
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+	/** The protocols of the remote users of the local rooms, by node and nickname */
+	private final ConcurrentMap<String, TBGPProtocol> sessions = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+
+	private final LongAdder forwarded = new LongAdder();
+	private final LongAdder batchesSent = new LongAdder();
+
+	/**
+	 * The node of a remote room a local user was sent to. The route is kept once the room accepts the user,
+	 * and dropped if it rejects the user, which also ends the session of the user on that node.
+	 */
+	private static final class Route {
+		private final String node;
+		private volatile boolean accepted = false;
+
+		private Route(String node) {
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Registers the node on the bus, and makes the server forward the commands of remote rooms through it
+	 * @param lingerMicros The time a message waits for others to join its batch, or 0 to send it right away
+	 */
+	public ClusterNode(String nodeId, ConsistentHashRing ring, ClusterBus bus, TBGPServer server, long lingerMicros) {
+		if (!ring.getNodes().contains(nodeId)) {
+			throw new IllegalArgumentException("the node " + nodeId + " is not on the ring");
+		}
+		this.nodeId = nodeId;
+		this.ring = ring;
+		this.bus = bus;
+		this.server = server;
+		this.lingerMicros = lingerMicros;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "cluster-flush-" + nodeId);
+			thread.setDaemon(true);
+			return thread;
+		});
+		bus.register(nodeId, this);
+		server.setCluster(this);
+	}
+
+	/**
+	 * Reads the linger period from the system property tbgp.cluster.lingerMicros (default 100)
+	 */
+	public static ClusterNode fromSystemProperties(String nodeId, ConsistentHashRing ring, ClusterBus bus,
+			TBGPServer server) {
+		return new ClusterNode(nodeId, ring, bus, server, Long.getLong("tbgp.cluster.lingerMicros", 100));
+	}
+
+	public String getNodeId() {
+		return this.nodeId;
+	}
+
+	/**
+	 * Forwards the command of a local user to the node of its room, if the room is remote. Called in the order
+	 * of the user's commands.
+	 * @return True if the command was forwarded, false if it should run locally
+	 */
+	public boolean forward(String nick, TBGPMessage cmd) {
+		Route route = this.routes.get(nick);
+		switch (cmd.getCode()) {
+		case JOIN:
+		case SPECTATE:
+			if (route == null) {
+				// a user in a local room, or without a room name, is rejected locally
+				if (cmd.getParam() == null || this.server.getUserRoom(nick) != null) {
+					return false;
+				}
+				String owner = this.ring.getOwner(cmd.getParam());
+				if (owner.equals(this.nodeId)) {
+					return false;
+				}
+				route = new Route(owner);
+				this.routes.put(nick, route);
+			}
+			break;
+		case MSG:
+		case STARTGAME:
+		case TXTRESP:
+		case SELECTRESP:
+			if (route == null) {
+				return false;
+			}
+			break;
+		default:
+			return false;
+		}
+		this.forwarded.increment();
+		send(route.node, new ClusterMessage(ClusterMessage.Kind.COMMAND, nick, cmd.getCommand(), cmd.getParam()));
+		return true;
+	}
+
+	/**
+	 * Tells the node of the user's remote room, if any, that the user disconnected. Called once the user was
+	 * removed, after its last command.
+	 */
+	public void userLeft(String nick) {
+		Route route = this.routes.remove(nick);
+		if (route != null) {
+			send(route.node, new ClusterMessage(ClusterMessage.Kind.LEAVE, nick, null, null));
+		}
+	}
+
+	@Override
+	public void receive(String fromNode, List<ClusterMessage> batch) {
+		for (ClusterMessage msg : batch) {
+			try {
+				switch (msg.getKind()) {
+				case COMMAND:
+					runCommand(fromNode, msg);
+					break;
+				case REPLY:
+					deliverReply(msg);
+					break;
+				case LEAVE:
+					TBGPProtocol session = this.sessions.remove(sessionKey(fromNode, msg.getNick()));
+					if (session != null) {
+						session.connectionTerminated();
+					}
+					break;
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "a message from node " + fromNode + " failed: " + msg, e);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of commands forwarded to other nodes
+	 */
+	public long getForwarded() {
+		return this.forwarded.sum();
+	}
+
+	/**
+	 * @return The number of batches sent to other nodes
+	 */
+	public long getBatchesSent() {
+		return this.batchesSent.sum();
+	}
+
+	public void shutdown() {
+		this.flusher.shutdown();
+	}
+
+	/**
+	 * Runs a command of a remote user, with the protocol of the user on this node
+	 */
+	private void runCommand(String fromNode, ClusterMessage msg) {
+		TBGPCommand code = TBGPCommand.match(msg.getCommand(), 0, msg.getCommand().length());
+		if ((code == TBGPCommand.JOIN || code == TBGPCommand.SPECTATE) && msg.getParam() != null
+				&& !this.ring.getOwner(msg.getParam()).equals(this.nodeId)) {
+			// the user was sent here for another room, which this node does not own
+			reply(fromNode, msg.getNick(), new TBGPMessage("SYSMSG", msg.getCommand() + " REJECTED"));
+			return;
+		}
+		String key = sessionKey(fromNode, msg.getNick());
+		TBGPProtocol session = this.sessions.get(key);
+		ProtocolCallback<StringMessage> callback = new ProtocolCallback<StringMessage>() {
+			@Override
+			public void sendMessage(StringMessage reply) throws IOException {
+				reply(fromNode, msg.getNick(), TBGPStringMessage.parse(reply));
+			}
+		};
+		if (session == null) {
+			session = new TBGPProtocol(this.server);
+			if (!session.login(msg.getNick(), callback)) {
+				reply(fromNode, msg.getNick(), new TBGPMessage("SYSMSG", msg.getCommand() + " REJECTED"));
+				return;
+			}
+			this.sessions.put(key, session);
+		}
+		session.processMessage(new TBGPStringMessage(new TBGPMessage(msg.getCommand(), code, msg.getParam())),
+				callback);
+	}
+
+	/**
+	 * Hands a message from the node of a remote room to the local user
+	 */
+	private void deliverReply(ClusterMessage msg) {
+		Route route = this.routes.get(msg.getNick());
+		if (route != null && !route.accepted && "SYSMSG".equals(msg.getCommand()) && msg.getParam() != null) {
+			String param = msg.getParam();
+			if (param.startsWith("JOIN ACCEPTED") || param.startsWith("SPECTATE ACCEPTED")) {
+				route.accepted = true;
+			} else if (param.startsWith("JOIN REJECTED") || param.startsWith("SPECTATE REJECTED")) {
+				// the node of the room may have logged the user in before it rejected it - that session goes too
+				if (this.routes.remove(msg.getNick(), route)) {
+					send(route.node, new ClusterMessage(ClusterMessage.Kind.LEAVE, msg.getNick(), null, null));
+				}
+			}
+		}
+		this.server.deliver(msg.getNick(), new TBGPMessage(msg.getCommand(), msg.getParam()));
+	}
+
+	private void reply(String toNode, String nick, TBGPMessage msg) {
+		send(toNode, new ClusterMessage(ClusterMessage.Kind.REPLY, nick, msg.getCommand(), msg.getParam()));
+	}
+
+	private void send(String toNode, ClusterMessage msg) {
+		this.outboxes.computeIfAbsent(toNode, Outbox::new).add(msg);
+	}
+
+	private static String sessionKey(String node, String nick) {
+		return node + "/" + nick;
+	}
+
+	/**
+	 * The messages to a node, sent in batches by the flusher
+	 */
+	private final class Outbox implements Runnable {
+		private final String toNode;
+		private final Queue<ClusterMessage> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private Outbox(String toNode) {
+			this.toNode = toNode;
+		}
+
+		private void add(ClusterMessage msg) {
+			this.queue.add(msg);
+			if (this.scheduled.compareAndSet(false, true)) {
+				if (lingerMicros > 0) {
+					flusher.schedule(this, lingerMicros, TimeUnit.MICROSECONDS);
+				} else {
+					flusher.execute(this);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			List<ClusterMessage> batch = new ArrayList<>();
+			ClusterMessage msg;
+			while (batch.size() < MAX_BATCH && (msg = this.queue.poll()) != null) {
+				batch.add(msg);
+			}
+			if (!batch.isEmpty()) {
+				batchesSent.increment();
+				bus.send(nodeId, this.toNode, batch);
+			}
+			this.scheduled.set(false);
+			// messages that were added while the flag was set
+			if (!this.queue.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+				flusher.execute(this);
+			}
+		}
+	}
+}
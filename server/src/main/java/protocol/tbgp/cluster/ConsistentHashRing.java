@@ -0,0 +1,71 @@
+package protocol.tbgp.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys (room names) to the nodes of the cluster by consistent hashing.<br/>
+ * Every node is placed at many points of a ring of 64 bit hashes, and a key belongs to the first node at or 
+ * after its own hash. Adding or removing a node only moves the keys of the arcs it takes or gives up, and 
+ * the virtual points spread the keys evenly. A ring is immutable - a change of the nodes makes a new ring.
+ */
+public class ConsistentHashRing {
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final List<String> nodes;
+	
+	/**
+	 * @param nodes The ids of the nodes
+	 * @param virtualNodes The number of points of every node on the ring
+	 */
+	public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty() || virtualNodes <= 0) {
+			throw new IllegalArgumentException("a ring needs nodes, and virtual nodes");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		for (String node : this.nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				this.ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+	
+	public ConsistentHashRing(Collection<String> nodes) {
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+	
+	/**
+	 * @return The id of the node that owns the key
+	 */
+	public String getOwner(String key) {
+		Map.Entry<Long, String> entry = this.ring.ceilingEntry(hash(key));
+		return entry != null ? entry.getValue() : this.ring.firstEntry().getValue();
+	}
+	
+	public List<String> getNodes() {
+		return this.nodes;
+	}
+	
+	/**
+	 * FNV-1a over the UTF-8 bytes of the key, with a final mix so that similar keys land far apart
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
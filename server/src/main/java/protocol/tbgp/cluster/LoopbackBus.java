@@ -0,0 +1,65 @@
+package protocol.tbgp.cluster;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A bus between nodes in the same process, for tests and for running a cluster on one machine.<br/>
+ * Every node receives its batches on a thread of its own, one batch at a time, so that the batches keep 
+ * their order and a node never runs the code of another on the sender's thread - as over a network.
+ */
+public class LoopbackBus implements ClusterBus {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
+	
+	private final ConcurrentMap<String, Receiver> receivers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, ExecutorService> inboxes = new ConcurrentHashMap<>();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	
+	@Override
+	public void register(String nodeId, Receiver receiver) {
+		this.receivers.put(nodeId, receiver);
+		this.inboxes.computeIfAbsent(nodeId, id -> Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "loopback-bus-" + id);
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+	
+	@Override
+	public void send(String fromNode, String toNode, List<ClusterMessage> batch) {
+		ExecutorService inbox = this.inboxes.get(toNode);
+		if (inbox == null) {
+			logger.warning("dropped a batch of " + batch.size() + " messages to the unknown node " + toNode);
+			return;
+		}
+		this.batches.increment();
+		this.messages.add(batch.size());
+		inbox.execute(() -> this.receivers.get(toNode).receive(fromNode, batch));
+	}
+	
+	/**
+	 * @return The number of batches sent over the bus
+	 */
+	public long getBatches() {
+		return this.batches.sum();
+	}
+	
+	/**
+	 * @return The number of messages sent over the bus
+	 */
+	public long getMessages() {
+		return this.messages.sum();
+	}
+	
+	public void shutdown() {
+		for (ExecutorService inbox : this.inboxes.values()) {
+			inbox.shutdown();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package protocol.tbgp.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when a game of Bluffer moves from one phase to another.
+ */
+@Name("edu.spl.tbgp.BlufferPhase")
+@Label("Bluffer Phase")
+@Category({ "TBGP", "Games" })
+@Description("A game of Bluffer moved to another phase")
+public class BlufferPhaseEvent extends Event {
+
+	@Label("Room")
+	public String room;
+
+	@Label("Question")
+	@Description("The number of the current question, starting from 1")
+	public int question;
+
+	@Label("From")
+	public String from;
+
+	@Label("To")
+	public String to;
+}
@@ -0,0 +1,26 @@
+package protocol.tbgp.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Spans the processing of a single TBGP command by TBGPProtocol.processMessage.
+ */
+@Name("edu.spl.tbgp.ProcessMessage")
+@Label("Process Message")
+@Category({ "TBGP" })
+@Description("A TBGP command was processed")
+@StackTrace(false)
+public class ProcessMessageEvent extends Event {
+
+	@Label("Command")
+	public String command;
+
+	@Label("Result")
+	@Description("ACCEPTED, REJECTED, UNIDENTIFIED, or DONT_ANSWER when no reply was sent")
+	public String result;
+}
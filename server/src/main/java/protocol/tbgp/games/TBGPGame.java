@@ -3,6 +3,10 @@ package protocol.tbgp.games;
 import protocol.tbgp.TBGPRoom;
 import protocol.tbgp.TBGPUser;
 
+/**
+ * A game in a room. The game is only called by the tasks of the room's lane (see 
+ * {@link protocol.tbgp.RoomLanes}), one at a time, so it needs no locks.
+ */
 public abstract class TBGPGame {
 	private final String name;
 	protected final TBGPRoom room;
@@ -20,6 +24,14 @@ public abstract class TBGPGame {
 		return this.name;
 	}
 	
+	/**
+	 * @return The state of the game, to restore it after a restart (see 
+	 *         {@link TBGPGameFactory#restore(String, TBGPRoom, String)}), or null if the game cannot be restored
+	 */
+	public String saveState() {
+		return null;
+	}
+	
 	/**
 	 * Handles a response sent by the user (with TXTRESP)
 	 * @return True if the response was expected, false if not
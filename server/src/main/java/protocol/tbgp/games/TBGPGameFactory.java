@@ -8,5 +8,13 @@ public interface TBGPGameFactory {
 	TBGPGame create(String gameName, TBGPRoom room);
 	
 	Set<String> getSupportedGames();
+	
+	/**
+	 * Restores a game from the state it saved (see {@link TBGPGame#saveState()})
+	 * @return The game, or null if it cannot be restored
+	 */
+	default TBGPGame restore(String gameName, TBGPRoom room, String state) {
+		return null;
+	}
 }
 
@@ -18,14 +18,18 @@ import java.util.Set;
 
 import com.google.gson.Gson;
 
+import protocol.tbgp.RoomLanes;
 import protocol.tbgp.TBGPMessage;
 import protocol.tbgp.TBGPRoom;
 import protocol.tbgp.TBGPUser;
+import protocol.tbgp.events.BlufferPhaseEvent;
 import protocol.tbgp.games.TBGPGame;
 
 public class Bluffer extends TBGPGame {
 	// The number of questions to be asked before finishing the game
 	private static final int NUM_OF_QUESTIONS = 3;
+	// The time the players have to answer, by default
+	public static final long DEFAULT_ROUND_MILLIS = 60000;
 	
 	/** 
 	 * Represents the type of answer we're currently expecting - a full answer or choices
@@ -43,14 +47,44 @@ public class Bluffer extends TBGPGame {
 		OpenBlufferQuestion[] questions;
 	}
 	
+	/**
+	 * The saved state of a game, to restore it after a restart
+	 */
+	private static class SavedState {
+		Map<String, Integer> userScores;
+		List<OpenBlufferQuestion> questionsAsked;
+		ExpectedAnswerState currentState;
+		ChoicesBlufferQuestion choicesQuestion;
+	}
+	
+	private static final Gson gson = new Gson();
+	
 	private String questionsDBPath;
 	private LinkedList<OpenBlufferQuestion> questionsAsked;
 	private ExpectedAnswerState currentState;
 	private ChoicesBlufferQuestion choicesQuestion;
 	private Map<String, Integer> userScores;
+	/** The time the players have to answer a question, and to choose an answer, or 0 to wait for all of them */
+	private final long roundMillis;
+	/** Closes the current phase when its time is up, or null */
+	private RoomLanes.Timeout deadline;
 	
+	/**
+	 * Creates a game whose phases close after the time in the system property tbgp.bluffer.roundMillis 
+	 * (default 60000)
+	 */
 	public Bluffer(String questionsDBPath, TBGPRoom room) {
+		this(questionsDBPath, room, Long.getLong("tbgp.bluffer.roundMillis", DEFAULT_ROUND_MILLIS));
+	}
+	
+	/**
+	 * @param roundMillis The time the players have to answer a question, and to choose an answer. When it is 
+	 * up, the game goes on with the answers it got. 0 waits for all the players.
+	 */
+	public Bluffer(String questionsDBPath, TBGPRoom room, long roundMillis) {
 		super("Bluffer", room);
+		this.roundMillis = roundMillis;
+		this.deadline = null;
 		this.questionsDBPath = questionsDBPath;
 		this.questionsAsked = new LinkedList<>();
 		this.currentState = ExpectedAnswerState.NONE;
@@ -65,21 +99,46 @@ public class Bluffer extends TBGPGame {
 		beginNextQuestion();
 	}
 	
+	/**
+	 * Restores a game that was saved, and resumes it where it was. The current phase gets a full round.
+	 * @param state The state saved by {@link #saveState()}
+	 */
+	public Bluffer(String questionsDBPath, TBGPRoom room, String state) {
+		super("Bluffer", room);
+		this.roundMillis = Long.getLong("tbgp.bluffer.roundMillis", DEFAULT_ROUND_MILLIS);
+		this.deadline = null;
+		SavedState saved = gson.fromJson(state, SavedState.class);
+		this.questionsDBPath = questionsDBPath;
+		this.questionsAsked = new LinkedList<>(saved.questionsAsked);
+		this.currentState = saved.currentState;
+		this.choicesQuestion = saved.choicesQuestion;
+		this.userScores = new HashMap<>(saved.userScores);
+		startDeadline();
+	}
+	
+	@Override
+	public String saveState() {
+		SavedState saved = new SavedState();
+		saved.userScores = this.userScores;
+		saved.questionsAsked = this.questionsAsked;
+		saved.currentState = this.currentState;
+		saved.choicesQuestion = this.choicesQuestion;
+		return gson.toJson(saved);
+	}
+	
 	@Override
 	public boolean handleTextResponse(TBGPUser user, String response) {
 		if (currentState != ExpectedAnswerState.TEXT) {
 			return false;
 		}
 		
-		synchronized (questionsAsked) {
-			OpenBlufferQuestion q = questionsAsked.getLast();
-			q.addAnswer(user.getNickname(), response);
-			
-			user.sendMessage(new TBGPMessage("SYSMSG", "TXTRESP ACCEPTED"));
-			
-			if (q.getNumOfAnswers() >= room.getUsers().size()) {
-				beginChoicesStage();
-			}
+		OpenBlufferQuestion q = questionsAsked.getLast();
+		q.addAnswer(user.getNickname(), response);
+		
+		user.sendMessage(new TBGPMessage("SYSMSG", "TXTRESP ACCEPTED"));
+		
+		if (q.getNumOfAnswers() >= room.getUsers().size()) {
+			beginChoicesStage();
 		}
 		
 		return true;
@@ -93,44 +152,97 @@ public class Bluffer extends TBGPGame {
 		
 		final String nickname = user.getNickname();
 		
-		synchronized (this.choicesQuestion) {
-			List<String> answerers = this.choicesQuestion.getOriginalAnswerers(choice);
-			if (answerers == null) {
-				return false;
-			}
-			
-			if (!this.choicesQuestion.addAnswerer(nickname)) {
-				return false;
-			}
-			
-			user.sendMessage(new TBGPMessage("SYSMSG", "SELECTRESP ACCEPTED"));
-			
-			user.sendMessage(new TBGPMessage("GAMEMSG", "The correct answer is: " + 
-											 choicesQuestion.getCorrectAnswer()));
-			
-			if (choice == this.choicesQuestion.getCorrectChoice()) {
-				user.sendMessage(new TBGPMessage("GAMEMSG", "correct! +10pts"));
-				userScores.put(nickname, new Integer(userScores.get(nickname) + 10));
-			} else {
-				user.sendMessage(new TBGPMessage("GAMEMSG", "wrong! +0pts"));
-			}
-			
-			for (String answerer : answerers) {
-				if (answerer != nickname) {
-					userScores.put(answerer, new Integer(userScores.get(answerer) + 5));
-				}
-			}
-			
-			if (this.choicesQuestion.getNumOfAnswerers() >= room.getUsers().size()) {
-				beginNextQuestion();
+		List<String> answerers = this.choicesQuestion.getOriginalAnswerers(choice);
+		if (answerers == null) {
+			return false;
+		}
+		
+		if (!this.choicesQuestion.addAnswerer(nickname)) {
+			return false;
+		}
+		
+		user.sendMessage(new TBGPMessage("SYSMSG", "SELECTRESP ACCEPTED"));
+		
+		user.sendMessage(new TBGPMessage("GAMEMSG", "The correct answer is: " + 
+										 choicesQuestion.getCorrectAnswer()));
+		
+		if (choice == this.choicesQuestion.getCorrectChoice()) {
+			user.sendMessage(new TBGPMessage("GAMEMSG", "correct! +10pts"));
+			userScores.put(nickname, new Integer(userScores.get(nickname) + 10));
+		} else {
+			user.sendMessage(new TBGPMessage("GAMEMSG", "wrong! +0pts"));
+		}
+		
+		for (String answerer : answerers) {
+			if (!answerer.equals(nickname)) {
+				userScores.put(answerer, new Integer(userScores.get(answerer) + 5));
 			}
-			
-			return true;
 		}
+		
+		if (this.choicesQuestion.getNumOfAnswerers() >= room.getUsers().size()) {
+			beginNextQuestion();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Moves the game to another phase, recording the transition
+	 */
+	private void setState(ExpectedAnswerState state) {
+		BlufferPhaseEvent event = new BlufferPhaseEvent();
+		if (state != currentState && event.shouldCommit()) {
+			event.room = room.getName();
+			event.question = questionsAsked.size();
+			event.from = currentState.name();
+			event.to = state.name();
+			event.commit();
+		}
+		this.currentState = state;
+		startDeadline();
+	}
+	
+	/**
+	 * Starts the deadline of the current phase, instead of the deadline of the previous phase
+	 */
+	private void startDeadline() {
+		if (deadline != null) {
+			deadline.cancel();
+			deadline = null;
+		}
+		if (roundMillis > 0 && currentState != ExpectedAnswerState.NONE) {
+			deadline = room.schedule(() -> closePhase(), roundMillis);
+		}
+	}
+	
+	/**
+	 * Closes the current phase when its time is up, with the answers the game got so far. The players that 
+	 * did not answer get no points.
+	 */
+	private void closePhase() {
+		deadline = null;
+		if (room.getGame() != this) {
+			// the game is over, or never started
+			return;
+		}
+		switch (currentState) {
+		case TEXT:
+			sendMessageToRoom(new TBGPMessage("GAMEMSG", "Time is up!"));
+			beginChoicesStage();
+			break;
+		case CHOICES:
+			sendMessageToRoom(new TBGPMessage("GAMEMSG", "Time is up! The correct answer is: " + 
+					choicesQuestion.getCorrectAnswer()));
+			beginNextQuestion();
+			break;
+		default:
+			return;
+		}
+		room.save();
 	}
 	
 	private void beginNextQuestion() {
-		this.currentState = ExpectedAnswerState.NONE;
+		setState(ExpectedAnswerState.NONE);
 		
 		if (questionsAsked.size() >= NUM_OF_QUESTIONS) {
 			String scores = "Summary: ";
@@ -144,7 +256,7 @@ public class Bluffer extends TBGPGame {
 		} else {
 			OpenBlufferQuestion question = readQuestion(questionsAsked);
 			questionsAsked.add(question);
-			currentState = ExpectedAnswerState.TEXT;
+			setState(ExpectedAnswerState.TEXT);
 			
 			sendMessageToRoom(new TBGPMessage("ASKTXT", question.getQuestionText()));
 		}
@@ -177,7 +289,7 @@ public class Bluffer extends TBGPGame {
 		
 		this.choicesQuestion = new ChoicesBlufferQuestion(choices, 
 				shuffledAnswers.indexOf(correctAnswer), correctAnswer);
-		this.currentState = ExpectedAnswerState.CHOICES;
+		setState(ExpectedAnswerState.CHOICES);
 		
 		TBGPMessage msg = new TBGPMessage("ASKCHOICES", questionStr);
 		sendMessageToRoom(msg);
@@ -191,7 +303,6 @@ public class Bluffer extends TBGPGame {
 			throw new InvalidParameterException();
 		}
 		
-		Gson gson = new Gson();
 		QuestionsInfo questionsInfo = gson.fromJson(br, QuestionsInfo.class);
 		ArrayList<OpenBlufferQuestion> questions = new ArrayList<>(Arrays.asList(questionsInfo.questions));
 		Collections.shuffle(questions);
@@ -205,9 +316,6 @@ public class Bluffer extends TBGPGame {
 	}
 	
 	private void sendMessageToRoom(TBGPMessage msg) {
-		Set<TBGPUser> users = room.getUsers();
-		for (TBGPUser user : users) {
-			user.sendMessage(msg);
-		}
+		room.broadcast(msg, null);
 	}
 }
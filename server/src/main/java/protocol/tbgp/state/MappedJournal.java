@@ -0,0 +1,99 @@
+package protocol.tbgp.state;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of text records, in a memory-mapped file.<br/>
+ * A record is a 4 byte length followed by that many bytes of UTF-8 text. The file is mapped ahead of the
+ * records, and zero-filled, so a length of 0 marks the end of the journal. The length of a record is written
+ * after its text, so a record that was cut short by a crash is never read back.<br/>
+ * Appending is a copy into the mapped pages, without a system call: the pages reach the file when the OS 
+ * writes them back, even if the process dies - only {@link #force()} guards against the machine crashing.
+ */
+public class MappedJournal implements Closeable {
+	private static final int HEADER_SIZE = 4;
+	private static final int INITIAL_SIZE = 1024 * 1024;
+	
+	private final FileChannel channel;
+	private MappedByteBuffer buffer;
+	
+	/**
+	 * Creates a new journal in the given file, which must not exist
+	 */
+	public MappedJournal(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, 
+				StandardOpenOption.WRITE);
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+	}
+	
+	/**
+	 * Appends a record
+	 */
+	public synchronized void append(String record) throws IOException {
+		byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+		// the record, and the empty length that ends the journal
+		ensureRoom(HEADER_SIZE + bytes.length + HEADER_SIZE);
+		int start = this.buffer.position();
+		this.buffer.position(start + HEADER_SIZE);
+		this.buffer.put(bytes);
+		this.buffer.putInt(start, bytes.length);
+	}
+	
+	/**
+	 * Writes the appended records to the disk
+	 */
+	public synchronized void force() {
+		this.buffer.force();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		this.channel.close();
+	}
+	
+	/**
+	 * Reads the records of a journal, in the order they were appended
+	 */
+	public static void replay(Path path, Consumer<String> consumer) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining()) {
+					break;
+				}
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				consumer.accept(new String(bytes, StandardCharsets.UTF_8));
+			}
+		}
+	}
+	
+	/**
+	 * Maps more of the file, if the mapped part has no room for the given number of bytes
+	 */
+	private void ensureRoom(int length) throws IOException {
+		if (this.buffer.remaining() >= length) {
+			return;
+		}
+		int position = this.buffer.position();
+		long size = this.buffer.capacity();
+		while (size - position < length) {
+			size *= 2;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("the journal is full");
+		}
+		this.buffer.force();
+		this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		this.buffer.position(position);
+	}
+}
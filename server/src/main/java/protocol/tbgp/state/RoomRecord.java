@@ -0,0 +1,60 @@
+package protocol.tbgp.state;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The saved state of a room: its players, and its game, if one is in progress
+ */
+public class RoomRecord {
+	private String name;
+	/** True for a record of a room that was reclaimed */
+	private boolean removed;
+	private List<String> players;
+	private String game;
+	private String gameState;
+	
+	/** Empty constructor for Gson */
+	RoomRecord() {
+		this.players = new ArrayList<>();
+	}
+	
+	/**
+	 * @param game The name of the game in progress, or null
+	 * @param gameState The state of the game, as it saved it, or null
+	 */
+	public RoomRecord(String name, List<String> players, String game, String gameState) {
+		this.name = name;
+		this.removed = false;
+		this.players = players;
+		this.game = game;
+		this.gameState = gameState;
+	}
+	
+	static RoomRecord removed(String name) {
+		RoomRecord record = new RoomRecord();
+		record.name = name;
+		record.removed = true;
+		return record;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	boolean isRemoved() {
+		return removed;
+	}
+	
+	public List<String> getPlayers() {
+		return players;
+	}
+	
+	public String getGame() {
+		return game;
+	}
+	
+	public String getGameState() {
+		return gameState;
+	}
+}
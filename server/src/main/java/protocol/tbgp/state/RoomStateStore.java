@@ -0,0 +1,288 @@
+package protocol.tbgp.state;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Keeps the state of the rooms on disk, so that a restarted server takes up the rooms and games where they
+ * were.<br/>
+ * The state is kept in a directory, as a snapshot of all the rooms, and a journal of the rooms that changed
+ * since:
+ * <UL>
+ * <LI>Every change of a room appends the whole new state of the room to the journal (see
+ * {@link MappedJournal}), which is a copy into memory.
+ * <LI>Every snapshot period, a new journal is started, and the last state of every room is written to a new
+ * snapshot, which replaces the old one at once. The journals the snapshot covers are deleted.
+ * <LI>On start, the snapshot is read, and the journals after it are replayed - the last state of a room wins.
+ * </UL>
+ * Journals are numbered. A snapshot records the number of the first journal after it, so a crash between
+ * starting a journal and writing the snapshot only replays some changes twice.
+ */
+public class RoomStateStore {
+	private static final Logger logger = Logger.getLogger("edu.spl.tbgp");
+
+	private static final String SNAPSHOT_FILE = "snapshot.json";
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String JOURNAL_SUFFIX = ".log";
+
+	/**
+	 * The content of a snapshot file
+	 */
+	private static class Snapshot {
+		/** The number of the first journal after the snapshot */
+		long journal;
+		List<RoomRecord> rooms;
+	}
+
+	private final Path dir;
+	private final long snapshotMillis;
+	private final Gson gson = new Gson();
+
+	/** The last state of every room, as written to the journal, by room name */
+	private final ConcurrentMap<String, String> rooms = new ConcurrentHashMap<>();
+
+	/** The journal of the changes since the last snapshot, or null before the store starts */
+	private volatile MappedJournal journal = null;
+	private long journalNumber = 0;
+	private ScheduledExecutorService timer = null;
+
+	private final LongAdder journalRecords = new LongAdder();
+	private final LongAdder snapshots = new LongAdder();
+
+	/**
+	 * @param dir The directory of the snapshot and the journals. It is created if it does not exist.
+	 * @param snapshotMillis The period of snapshots
+	 */
+	public RoomStateStore(Path dir, long snapshotMillis) {
+		if (snapshotMillis <= 0) {
+			throw new IllegalArgumentException("snapshotMillis must be positive");
+		}
+		this.dir = dir;
+		this.snapshotMillis = snapshotMillis;
+	}
+
+	/**
+	 * Reads the directory from the system property tbgp.stateDir, and the snapshot period from
+	 * tbgp.snapshotMillis (default 30000)
+	 * @return The store, or null if tbgp.stateDir is not set, and the state should not be kept
+	 */
+	public static RoomStateStore fromSystemProperties() {
+		return fromSystemProperties(null);
+	}
+
+	/**
+	 * Like {@link #fromSystemProperties()}, for one of several nodes in the same process, which keeps its state
+	 * in a directory of its own under tbgp.stateDir
+	 * @param nodeId The id of the node, or null for a node that runs alone
+	 */
+	public static RoomStateStore fromSystemProperties(String nodeId) {
+		String dir = System.getProperty("tbgp.stateDir");
+		if (dir == null) {
+			return null;
+		}
+		Path path = nodeId == null ? Paths.get(dir) : Paths.get(dir, nodeId);
+		return new RoomStateStore(path, Long.getLong("tbgp.snapshotMillis", 30000));
+	}
+
+	/**
+	 * Reads the saved state. Called once, before the store starts.
+	 * @return The rooms, as they were last saved
+	 */
+	public synchronized Collection<RoomRecord> load() throws IOException {
+		Files.createDirectories(this.dir);
+		TreeMap<String, RoomRecord> records = new TreeMap<>();
+		long firstJournal = 0;
+		Path snapshotPath = this.dir.resolve(SNAPSHOT_FILE);
+		if (Files.exists(snapshotPath)) {
+			try (Reader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+				Snapshot snapshot = this.gson.fromJson(reader, Snapshot.class);
+				firstJournal = snapshot.journal;
+				for (RoomRecord record : snapshot.rooms) {
+					records.put(record.getName(), record);
+				}
+			}
+		}
+		for (Path journalPath : listJournals().values()) {
+			if (journalNumber(journalPath) < firstJournal) {
+				continue;
+			}
+			MappedJournal.replay(journalPath, text -> {
+				try {
+					RoomRecord record = this.gson.fromJson(text, RoomRecord.class);
+					if (record.isRemoved()) {
+						records.remove(record.getName());
+					} else {
+						records.put(record.getName(), record);
+					}
+				} catch (JsonParseException e) {
+					logger.warning("skipped a broken record of " + journalPath.getFileName());
+				}
+			});
+		}
+		for (RoomRecord record : records.values()) {
+			this.rooms.put(record.getName(), this.gson.toJson(record));
+		}
+		this.journalNumber = Math.max(firstJournal, lastJournalNumber() + 1);
+		return records.values();
+	}
+
+	/**
+	 * Starts the journal with a snapshot of the rooms, and takes a new snapshot every snapshot period
+	 */
+	public synchronized void start() throws IOException {
+		Files.createDirectories(this.dir);
+		snapshot();
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "room-state-snapshots");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer.scheduleWithFixedDelay(() -> {
+			try {
+				snapshot();
+			} catch (IOException | RuntimeException e) {
+				logger.log(Level.SEVERE, "cannot take a snapshot of the rooms", e);
+			}
+		}, this.snapshotMillis, this.snapshotMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Saves the new state of a room. Called by the room's lane, after every change.
+	 */
+	public void update(RoomRecord record) {
+		String text = this.gson.toJson(record);
+		// the state is kept before it is appended, so a snapshot taken meanwhile holds it
+		this.rooms.put(record.getName(), text);
+		append(text);
+	}
+
+	/**
+	 * Forgets a room that was reclaimed. Called by the room's lane.
+	 */
+	public void remove(String roomName) {
+		if (this.rooms.remove(roomName) != null) {
+			append(this.gson.toJson(RoomRecord.removed(roomName)));
+		}
+	}
+
+	/**
+	 * Starts a new journal, and writes the last state of all the rooms to a new snapshot. The changes made
+	 * meanwhile are in the new journal.
+	 */
+	public synchronized void snapshot() throws IOException {
+		long number = this.journalNumber++;
+		MappedJournal previous = this.journal;
+		this.journal = new MappedJournal(journalPath(number));
+
+		Path temp = this.dir.resolve(SNAPSHOT_FILE + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			// the states are kept as JSON already - they are written as they are
+			writer.write("{\"journal\":" + number + ",\"rooms\":[");
+			String separator = "";
+			for (String text : this.rooms.values()) {
+				writer.write(separator);
+				writer.write(text);
+				separator = ",";
+			}
+			writer.write("]}");
+		}
+		Files.move(temp, this.dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.snapshots.increment();
+
+		if (previous != null) {
+			previous.close();
+		}
+		for (Path journalPath : listJournals().values()) {
+			if (journalNumber(journalPath) < number) {
+				Files.delete(journalPath);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of records appended to the journals
+	 */
+	public long getJournalRecords() {
+		return this.journalRecords.sum();
+	}
+
+	public long getSnapshots() {
+		return this.snapshots.sum();
+	}
+
+	/**
+	 * Stops taking snapshots, and writes the journal to the disk
+	 */
+	public synchronized void shutdown() throws IOException {
+		if (this.timer != null) {
+			this.timer.shutdown();
+		}
+		if (this.journal != null) {
+			this.journal.close();
+		}
+	}
+
+	private void append(String text) {
+		MappedJournal journal = this.journal;
+		if (journal == null) {
+			// not started yet - the next snapshot holds the state
+			return;
+		}
+		try {
+			journal.append(text);
+			this.journalRecords.increment();
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "cannot append to the journal of the rooms", e);
+		}
+	}
+
+	private Path journalPath(long number) {
+		return this.dir.resolve(String.format("%s%012d%s", JOURNAL_PREFIX, number, JOURNAL_SUFFIX));
+	}
+
+	/**
+	 * @return The journal files of the directory, by name, which orders them by number
+	 */
+	private TreeMap<String, Path> listJournals() throws IOException {
+		TreeMap<String, Path> journals = new TreeMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir,
+				JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+			for (Path path : stream) {
+				journals.put(path.getFileName().toString(), path);
+			}
+		}
+		return journals;
+	}
+
+	private long lastJournalNumber() throws IOException {
+		TreeMap<String, Path> journals = listJournals();
+		return journals.isEmpty() ? -1 : journalNumber(journals.lastEntry().getValue());
+	}
+
+	private static long journalNumber(Path journalPath) {
+		String name = journalPath.getFileName().toString();
+		return Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()));
+	}
+}
@@ -0,0 +1,448 @@
+package tokenizer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A tokenizer that compresses the bytes of another tokenizer with DEFLATE, in both directions.<br/>
+ * The bytes are sent in chunks. A chunk starts with a varint (7 bits per byte, least significant group
+ * first) of its length shifted left by one, with the low bit set if the chunk is compressed. The compressed
+ * chunks of a connection form a single raw DEFLATE stream (no zlib header), so that every message is
+ * compressed with the messages before it as its dictionary, and every compressed chunk ends with a sync
+ * flush, so it can be inflated as soon as it arrives.<br/>
+ * Every message is sent in a chunk of its own. A message whose encoding is shorter than the threshold is
+ * sent as it is, as compressing it would cost more than it saves. The client may send either kind of chunk,
+ * with any number of messages in a chunk.<br/>
+ * The Deflater and Inflater of a connection are taken from a pool the first time they are needed, and are
+ * returned to it when the tokenizer is closed.<br/>
+ * The compressed stream makes the encoding of a message depend on all the messages before it, so the
+ * messages must be written to the connection in the order they were encoded.
+ */
+public class DeflateMessageTokenizer<T> implements MessageTokenizer<T> {
+
+   /**
+    * The flag of the negotiation preamble that asks for compression.
+    */
+   public static final int FLAG_DEFLATE = 0x02;
+
+   /**
+    * The default threshold: messages shorter than this are not compressed.
+    */
+   public static final int DEFAULT_THRESHOLD = 128;
+
+   /**
+    * The number of bytes a chunk may exceed the frame limit by, for the framing of the message and the
+    * overhead of compression.
+    */
+   private static final int CHUNK_OVERHEAD = 1024;
+
+   private static final int MAX_HEADER_SIZE = 5;
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /**
+    * A buffer that grew beyond this size for a long message is dropped once it is used.
+    */
+   private static final int RETAINED_CAPACITY = 64 * 1024;
+
+   /**
+    * The number of idle compressors kept in each pool.
+    */
+   private static final int MAX_POOLED = 1024;
+
+   private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<Deflater>();
+
+   private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+
+   private static final AtomicInteger POOLED_DEFLATERS = new AtomicInteger();
+
+   private static final AtomicInteger POOLED_INFLATERS = new AtomicInteger();
+
+   private static final LongAdder PLAIN_BYTES_OUT = new LongAdder();
+
+   private static final LongAdder COMPRESSED_BYTES_OUT = new LongAdder();
+
+   private final MessageTokenizer<T> _tokenizer;
+
+   private final int _threshold;
+
+   /**
+    * The limit on the size of a frame, or null for no limit.
+    */
+   private final FrameLimit _limit;
+
+   private Deflater _deflater = null;
+
+   private Inflater _inflater = null;
+
+   private boolean _closed = false;
+
+   private boolean _shouldClose = false;
+
+   private long _rejectedBytes = 0;
+
+   /**
+    * The header of the incoming chunk, as far as it arrived.
+    */
+   private long _header = 0;
+
+   private int _headerShift = 0;
+
+   /**
+    * The number of bytes of the incoming chunk that did not arrive yet, or -1 while its header is read.
+    */
+   private int _chunkRemaining = -1;
+
+   private boolean _chunkCompressed = false;
+
+   /**
+    * The compressed bytes handed to the Inflater, and the bytes it inflates them to.
+    */
+   private byte[] _compressedIn = new byte[INITIAL_CAPACITY];
+
+   private final byte[] _inflated = new byte[16 * 1024];
+
+   /**
+    * The encoding of a message by the wrapped tokenizer.
+    */
+   private ByteBuffer _plain = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+   /**
+    * The last chunk that was built, at [_chunkStart, _chunkEnd), and its message. The chunk is kept until
+    * it is written, because a compressed chunk cannot be built twice.
+    */
+   private byte[] _chunk = new byte[INITIAL_CAPACITY];
+
+   private int _chunkStart = 0;
+
+   private int _chunkEnd = 0;
+
+   private T _chunkMessage = null;
+
+   /**
+    * @param tokenizer the tokenizer of the messages, whose bytes are compressed.
+    * @param threshold messages whose encoding is shorter than this are not compressed.
+    * @param limit the limit on the size of a frame, or null for no limit. A chunk that is larger than the
+    *        limit closes the connection, and the wrapped tokenizer enforces the limit on the inflated
+    *        frames.
+    */
+   public DeflateMessageTokenizer(MessageTokenizer<T> tokenizer, int threshold, FrameLimit limit) {
+      this._tokenizer = tokenizer;
+      this._threshold = threshold;
+      this._limit = limit;
+   }
+
+   /**
+    * Add some bytes to the message stream.
+    * Compressed chunks are inflated as they arrive, and handed to the wrapped tokenizer.
+    *
+    * @param bytes an array of bytes to be appended to the message.
+    */
+   public synchronized void addBytes(ByteBuffer bytes) {
+      while (bytes.hasRemaining() && !shouldClose() && !this._closed) {
+         if (this._chunkRemaining < 0) {
+            readHeader(bytes);
+            continue;
+         }
+         int length = Math.min(bytes.remaining(), this._chunkRemaining);
+         this._chunkRemaining -= length;
+         if (this._chunkCompressed) {
+            inflate(bytes, length);
+         } else {
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.limit(chunk.position() + length);
+            bytes.position(chunk.limit());
+            this._tokenizer.addBytes(chunk);
+         }
+         if (this._chunkRemaining == 0) {
+            this._chunkRemaining = -1;
+         }
+      }
+      // the input after a broken chunk is dropped
+      bytes.position(bytes.limit());
+   }
+
+   public boolean hasMessage() {
+      return this._tokenizer.hasMessage();
+   }
+
+   public T nextMessage() {
+      return this._tokenizer.nextMessage();
+   }
+
+   public synchronized boolean shouldClose() {
+      return this._shouldClose || this._tokenizer.shouldClose();
+   }
+
+   public synchronized long getRejectedBytes() {
+      return this._rejectedBytes + this._tokenizer.getRejectedBytes();
+   }
+
+   /**
+    * Convert the message into a chunk, compressing it if it is not shorter than the threshold.
+    *
+    * @return a ByteBuffer with the chunk.
+    */
+   public synchronized ByteBuffer getBytesForMessage(T msg) throws CharacterCodingException {
+      if (msg != this._chunkMessage) {
+         buildChunk(msg);
+      }
+      ByteBuffer bytes = ByteBuffer.wrap(Arrays.copyOfRange(this._chunk, this._chunkStart, this._chunkEnd));
+      chunkWritten();
+      return bytes;
+   }
+
+   /**
+    * Convert the message into a chunk, writing it into the given buffer. A chunk that does not fit is kept,
+    * and written by the next call for the same message.
+    *
+    * @return true if the whole chunk was written, false if out is too small to hold it.
+    */
+   public synchronized boolean encodeMessage(T msg, ByteBuffer out) throws CharacterCodingException {
+      if (msg != this._chunkMessage) {
+         buildChunk(msg);
+      }
+      if (out.remaining() < this._chunkEnd - this._chunkStart) {
+         return false;
+      }
+      out.put(this._chunk, this._chunkStart, this._chunkEnd - this._chunkStart);
+      chunkWritten();
+      return true;
+   }
+
+   /**
+    * Returns the Deflater and the Inflater of the connection to their pools.
+    */
+   public synchronized void close() {
+      if (this._closed) {
+         return;
+      }
+      this._closed = true;
+      if (this._deflater != null) {
+         release(this._deflater);
+         this._deflater = null;
+      }
+      if (this._inflater != null) {
+         release(this._inflater);
+         this._inflater = null;
+      }
+      this._tokenizer.close();
+   }
+
+   /**
+    * @return the number of bytes of the messages that were compressed, by all the tokenizers.
+    */
+   public static long getPlainBytesOut() {
+      return PLAIN_BYTES_OUT.sum();
+   }
+
+   /**
+    * @return the number of bytes the compressed messages were sent in, by all the tokenizers.
+    */
+   public static long getCompressedBytesOut() {
+      return COMPRESSED_BYTES_OUT.sum();
+   }
+
+   private void readHeader(ByteBuffer bytes) {
+      byte b = bytes.get();
+      this._header |= (long) (b & 0x7F) << this._headerShift;
+      this._headerShift += 7;
+      if ((b & 0x80) != 0) {
+         if (this._headerShift >= 7 * MAX_HEADER_SIZE) {
+            fail(bytes.remaining());
+         }
+         return;
+      }
+      long length = this._header >>> 1;
+      this._chunkCompressed = (this._header & 1) != 0;
+      this._header = 0;
+      this._headerShift = 0;
+      if (length > maxChunkSize()) {
+         fail(bytes.remaining());
+         return;
+      }
+      this._chunkRemaining = length == 0 ? -1 : (int) length;
+   }
+
+   private long maxChunkSize() {
+      return this._limit == null ? Integer.MAX_VALUE : (long) this._limit.getMaxFrameSize() + CHUNK_OVERHEAD;
+   }
+
+   /**
+    * Inflates the given number of bytes of a compressed chunk, and hands the result to the wrapped tokenizer.
+    */
+   private void inflate(ByteBuffer bytes, int length) {
+      if (this._compressedIn.length < length) {
+         this._compressedIn = new byte[Math.max(length, this._compressedIn.length * 2)];
+      }
+      bytes.get(this._compressedIn, 0, length);
+      if (this._inflater == null) {
+         this._inflater = acquireInflater();
+      }
+      this._inflater.setInput(this._compressedIn, 0, length);
+      try {
+         int inflated;
+         do {
+            inflated = this._inflater.inflate(this._inflated);
+            if (inflated > 0) {
+               this._tokenizer.addBytes(ByteBuffer.wrap(this._inflated, 0, inflated));
+            }
+         } while (inflated > 0 && !this._tokenizer.shouldClose());
+      } catch (DataFormatException e) {
+         fail(length);
+         return;
+      }
+      if (!this._inflater.needsInput() && !this._tokenizer.shouldClose()) {
+         // the client ended the stream, or asked for a dictionary
+         fail(length);
+      }
+      if (this._compressedIn.length > RETAINED_CAPACITY) {
+         this._compressedIn = new byte[INITIAL_CAPACITY];
+      }
+   }
+
+   /**
+    * Rejects the broken input, and asks for the connection to be closed.
+    */
+   private void fail(long rejected) {
+      this._shouldClose = true;
+      this._rejectedBytes += rejected;
+      if (this._limit != null) {
+         this._limit.rejected(rejected, true);
+      }
+   }
+
+   /**
+    * Encodes the message with the wrapped tokenizer, and builds its chunk.
+    */
+   private void buildChunk(T msg) throws CharacterCodingException {
+      this._plain.clear();
+      while (!this._tokenizer.encodeMessage(msg, this._plain)) {
+         this._plain = ByteBuffer.allocate(this._plain.capacity() * 2);
+      }
+      int length = this._plain.position();
+      // the payload goes after the room for the longest header, and the header right before it
+      int end;
+      boolean compressed = length >= this._threshold && !this._closed;
+      if (compressed) {
+         end = deflate(this._plain.array(), length);
+         PLAIN_BYTES_OUT.add(length);
+         COMPRESSED_BYTES_OUT.add(end - MAX_HEADER_SIZE);
+      } else {
+         ensureChunkCapacity(MAX_HEADER_SIZE + length);
+         System.arraycopy(this._plain.array(), 0, this._chunk, MAX_HEADER_SIZE, length);
+         end = MAX_HEADER_SIZE + length;
+      }
+      long header = ((long) (end - MAX_HEADER_SIZE) << 1) | (compressed ? 1 : 0);
+      int start = MAX_HEADER_SIZE - varintLength(header);
+      int pos = start;
+      while ((header & ~0x7FL) != 0) {
+         this._chunk[pos++] = (byte) ((header & 0x7F) | 0x80);
+         header >>>= 7;
+      }
+      this._chunk[pos] = (byte) header;
+      this._chunkStart = start;
+      this._chunkEnd = end;
+      this._chunkMessage = msg;
+      if (this._plain.capacity() > RETAINED_CAPACITY) {
+         this._plain = ByteBuffer.allocate(INITIAL_CAPACITY);
+      }
+   }
+
+   /**
+    * Compresses the given bytes into the chunk, after the room for its header, ending with a sync flush.
+    * @return the end of the compressed bytes in the chunk.
+    */
+   private int deflate(byte[] bytes, int length) {
+      if (this._deflater == null) {
+         this._deflater = acquireDeflater();
+      }
+      this._deflater.setInput(bytes, 0, length);
+      ensureChunkCapacity(MAX_HEADER_SIZE + length / 2 + 64);
+      int end = MAX_HEADER_SIZE;
+      while (true) {
+         int space = this._chunk.length - end;
+         int deflated = this._deflater.deflate(this._chunk, end, space, Deflater.SYNC_FLUSH);
+         end += deflated;
+         if (deflated < space) {
+            return end;
+         }
+         // a full output buffer may leave some of the flush behind
+         ensureChunkCapacity(this._chunk.length * 2);
+      }
+   }
+
+   private void chunkWritten() {
+      this._chunkMessage = null;
+      if (this._chunk.length > RETAINED_CAPACITY) {
+         this._chunk = new byte[INITIAL_CAPACITY];
+      }
+   }
+
+   private void ensureChunkCapacity(int capacity) {
+      if (this._chunk.length < capacity) {
+         this._chunk = Arrays.copyOf(this._chunk, Math.max(capacity, this._chunk.length * 2));
+      }
+   }
+
+   private static int varintLength(long value) {
+      int length = 1;
+      while ((value & ~0x7FL) != 0) {
+         value >>>= 7;
+         length++;
+      }
+      return length;
+   }
+
+   private static Deflater acquireDeflater() {
+      Deflater deflater = DEFLATERS.poll();
+      if (deflater == null) {
+         return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      }
+      POOLED_DEFLATERS.decrementAndGet();
+      return deflater;
+   }
+
+   private static Inflater acquireInflater() {
+      Inflater inflater = INFLATERS.poll();
+      if (inflater == null) {
+         return new Inflater(true);
+      }
+      POOLED_INFLATERS.decrementAndGet();
+      return inflater;
+   }
+
+   /**
+    * Resets a Deflater, and returns it to the pool, or frees it if the pool is full.
+    */
+   private static void release(Deflater deflater) {
+      deflater.reset();
+      if (POOLED_DEFLATERS.incrementAndGet() <= MAX_POOLED) {
+         DEFLATERS.add(deflater);
+      } else {
+         POOLED_DEFLATERS.decrementAndGet();
+         deflater.end();
+      }
+   }
+
+   /**
+    * Resets an Inflater, and returns it to the pool, or frees it if the pool is full.
+    */
+   private static void release(Inflater inflater) {
+      inflater.reset();
+      if (POOLED_INFLATERS.incrementAndGet() <= MAX_POOLED) {
+         INFLATERS.add(inflater);
+      } else {
+         POOLED_INFLATERS.decrementAndGet();
+         inflater.end();
+      }
+   }
+}
@@ -0,0 +1,87 @@
+package tokenizer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The maximal size of an incoming frame, and what a tokenizer does with a frame that exceeds it.<br/>
+ * The limit is enforced as the bytes arrive, so a client can never make a tokenizer hold more than the limit
+ * (plus a single read) of an unfinished frame. A single FrameLimit is shared by all the tokenizers of a
+ * server, and counts the rejected input over all of them.
+ */
+public class FrameLimit {
+
+   /**
+    * What to do with a frame that exceeds the limit.
+    */
+   public enum Policy {
+      /** reject the frame, and close the connection */
+      CLOSE,
+      /** drop the frame, and carry on with the next one */
+      SKIP
+   }
+
+   private final int _maxFrameSize;
+
+   private final Policy _policy;
+
+   private final LongAdder _rejectedBytes = new LongAdder();
+
+   private final LongAdder _rejectedFrames = new LongAdder();
+
+   /**
+    * @param maxFrameSize the maximal number of bytes in a frame, not counting its framing (separator or
+    *        length prefix).
+    * @param policy what to do with a frame that exceeds the limit.
+    */
+   public FrameLimit(int maxFrameSize, Policy policy) {
+      if (maxFrameSize <= 0) {
+         throw new IllegalArgumentException("maxFrameSize must be positive");
+      }
+      this._maxFrameSize = maxFrameSize;
+      this._policy = policy;
+   }
+
+   /**
+    * Reads the limit from the system properties tokenizer.maxFrameSize (default 1MB) and
+    * tokenizer.oversizedFramePolicy (close or skip, default close).
+    */
+   public static FrameLimit fromSystemProperties() {
+      int maxFrameSize = Integer.getInteger("tokenizer.maxFrameSize", 1024 * 1024);
+      String policy = System.getProperty("tokenizer.oversizedFramePolicy", "close");
+      return new FrameLimit(maxFrameSize, Policy.valueOf(policy.toUpperCase()));
+   }
+
+   public int getMaxFrameSize() {
+      return this._maxFrameSize;
+   }
+
+   public Policy getPolicy() {
+      return this._policy;
+   }
+
+   /**
+    * Counts input dropped by a tokenizer.
+    * @param bytes the number of bytes dropped.
+    * @param newFrame true if the bytes start a frame that was not counted yet.
+    */
+   public void rejected(long bytes, boolean newFrame) {
+      this._rejectedBytes.add(bytes);
+      if (newFrame) {
+         this._rejectedFrames.increment();
+      }
+   }
+
+   /**
+    * @return the number of bytes rejected by all the tokenizers that share this limit.
+    */
+   public long getRejectedBytes() {
+      return this._rejectedBytes.sum();
+   }
+
+   /**
+    * @return the number of frames rejected by all the tokenizers that share this limit.
+    */
+   public long getRejectedFrames() {
+      return this._rejectedFrames.sum();
+   }
+}
@@ -0,0 +1,238 @@
+package tokenizer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+/**
+ * A tokenizer of length-prefixed frames: every message is sent as a 4 byte, big-endian length, followed by
+ * that many bytes of payload.<br/>
+ * The framing is handled here, and subclasses only convert a single payload to a message and back.<br/>
+ * With a FrameLimit, a frame whose length exceeds the limit is rejected as soon as its header arrives:
+ * either the connection is closed, or the payload is dropped as it arrives.
+ */
+public abstract class LengthPrefixedMessageTokenizer<T> implements MessageTokenizer<T> {
+
+   /**
+    * The size of the length prefix of a frame.
+    */
+   public static final int HEADER_SIZE = 4;
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /**
+    * A buffer that grew beyond this size for a long message is dropped once it is empty.
+    */
+   private static final int RETAINED_CAPACITY = 64 * 1024;
+
+   /**
+    * The bytes received so far. The pending bytes are at [_start, _end).
+    */
+   private byte[] _buf = new byte[INITIAL_CAPACITY];
+
+   private int _start = 0;
+
+   private int _end = 0;
+
+   /**
+    * The limit on the size of a payload, or null for no limit.
+    */
+   private final FrameLimit _limit;
+
+   /**
+    * The number of bytes of an oversized frame that are still to be dropped as they arrive.
+    */
+   private long _skipRemaining = 0;
+
+   private boolean _shouldClose = false;
+
+   private long _rejectedBytes = 0;
+
+   protected LengthPrefixedMessageTokenizer() {
+      this(null);
+   }
+
+   /**
+    * @param limit the limit on the size of a payload, or null for no limit.
+    */
+   protected LengthPrefixedMessageTokenizer(FrameLimit limit) {
+      this._limit = limit;
+   }
+
+   /**
+    * Converts the payload of a frame to a message.
+    */
+   protected abstract T decodePayload(byte[] bytes, int offset, int length);
+
+   /**
+    * Writes the payload of a message to the given buffer.
+    * @return true if the whole payload was written, false if out is too small to hold it.
+    */
+   protected abstract boolean encodePayload(T msg, ByteBuffer out) throws CharacterCodingException;
+
+   /**
+    * Add some bytes to the message stream.
+    * The bytes are copied as they are. Complete messages can be retrieved using the nextMessage() method.
+    *
+    * @param bytes an array of bytes to be appended to the message.
+    */
+   public synchronized void addBytes(ByteBuffer bytes) {
+      if (this._shouldClose) {
+         bytes.position(bytes.limit());
+         return;
+      }
+      if (this._skipRemaining > 0) {
+         int skipped = (int) Math.min(this._skipRemaining, bytes.remaining());
+         bytes.position(bytes.position() + skipped);
+         this._skipRemaining -= skipped;
+         reject(skipped, false);
+      }
+      int length = bytes.remaining();
+      ensureRoom(length);
+      bytes.get(this._buf, this._end, length);
+      this._end += length;
+      if (this._limit != null) {
+         // enforce the limit right away
+         checkLimit();
+      }
+   }
+
+   /**
+    * Is there a complete message ready?.
+    * @return true the next call to nextMessage() will not return null, false otherwise.
+    */
+   public synchronized boolean hasMessage() {
+      if (this._limit != null) {
+         checkLimit();
+      }
+      int pending = this._end - this._start;
+      return pending >= HEADER_SIZE && pending - HEADER_SIZE >= frameLength();
+   }
+
+   public synchronized boolean shouldClose() {
+      return this._shouldClose;
+   }
+
+   public synchronized long getRejectedBytes() {
+      return this._rejectedBytes;
+   }
+
+   /**
+    * Get the next complete message if it exists, advancing the tokenizer to the next message.
+    * @return the next complete message, and null if no complete message exist.
+    */
+   public synchronized T nextMessage() {
+      if (!hasMessage()) {
+         return null;
+      }
+      int length = (int) frameLength();
+      T message = decodePayload(this._buf, this._start + HEADER_SIZE, length);
+      consume(HEADER_SIZE + length);
+      return message;
+   }
+
+   /**
+    * Convert the message into bytes representation, taking care of encoding and framing.
+    *
+    * @return a ByteBuffer with the message content converted to bytes, after framing information has been added.
+    */
+   public ByteBuffer getBytesForMessage(T msg) throws CharacterCodingException {
+      int capacity = INITIAL_CAPACITY;
+      while (true) {
+         ByteBuffer bytes = ByteBuffer.allocate(capacity);
+         if (encodeMessage(msg, bytes)) {
+            bytes.flip();
+            return bytes;
+         }
+         capacity *= 2;
+      }
+   }
+
+   /**
+    * Convert the message into bytes representation, writing the frame straight into the given buffer.
+    *
+    * @return true if the whole message was written, false if out is too small to hold it.
+    */
+   public boolean encodeMessage(T msg, ByteBuffer out) throws CharacterCodingException {
+      if (out.remaining() < HEADER_SIZE) {
+         return false;
+      }
+      int start = out.position();
+      out.position(start + HEADER_SIZE);
+      if (!encodePayload(msg, out)) {
+         return false;
+      }
+      out.putInt(start, out.position() - start - HEADER_SIZE);
+      return true;
+   }
+
+   /**
+    * @return the length of the payload of the frame at _start, which must have a complete header.
+    */
+   private long frameLength() {
+      return (((this._buf[this._start] & 0xFF) << 24) | ((this._buf[this._start + 1] & 0xFF) << 16)
+            | ((this._buf[this._start + 2] & 0xFF) << 8) | (this._buf[this._start + 3] & 0xFF)) & 0xFFFFFFFFL;
+   }
+
+   /**
+    * Rejects the frames at the head of the pending bytes whose length exceeds the limit.
+    */
+   private void checkLimit() {
+      while (!this._shouldClose && this._end - this._start >= HEADER_SIZE
+            && frameLength() > this._limit.getMaxFrameSize()) {
+         long frameSize = HEADER_SIZE + frameLength();
+         if (this._limit.getPolicy() == FrameLimit.Policy.CLOSE) {
+            this._shouldClose = true;
+            reject(this._end - this._start, true);
+            consume(this._end - this._start);
+            return;
+         }
+         // drop what arrived of the frame, and the rest of it as it arrives
+         int pending = this._end - this._start;
+         int dropped = (int) Math.min(frameSize, pending);
+         this._skipRemaining = frameSize - dropped;
+         reject(dropped, true);
+         consume(dropped);
+      }
+   }
+
+   private void reject(long bytes, boolean newFrame) {
+      this._rejectedBytes += bytes;
+      this._limit.rejected(bytes, newFrame);
+   }
+
+   /**
+    * Drops the given number of bytes, which were handled, from the head of the pending bytes.
+    */
+   private void consume(int length) {
+      this._start += length;
+      if (this._start == this._end) {
+         this._start = this._end = 0;
+         if (this._buf.length > RETAINED_CAPACITY) {
+            this._buf = new byte[INITIAL_CAPACITY];
+         }
+      }
+   }
+
+   /**
+    * Makes room for more bytes at the end of the buffer, by moving the pending bytes to its beginning, or by
+    * growing it.
+    */
+   private void ensureRoom(int length) {
+      if (this._buf.length - this._end >= length) {
+         return;
+      }
+      int pending = this._end - this._start;
+      byte[] target = this._buf;
+      if (pending + length > this._buf.length) {
+         int capacity = this._buf.length;
+         while (capacity < pending + length) {
+            capacity *= 2;
+         }
+         target = new byte[capacity];
+      }
+      System.arraycopy(this._buf, this._start, target, 0, pending);
+      this._buf = target;
+      this._end = pending;
+      this._start = 0;
+   }
+}
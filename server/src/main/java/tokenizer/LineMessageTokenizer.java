@@ -0,0 +1,303 @@
+package tokenizer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * A tokenizer of separator-delimited messages, that works on the raw bytes.<br/>
+ * The bytes are kept as they arrive, and are scanned for the encoded separator only once: the tokenizer
+ * remembers how far it has scanned, so a message that arrives in many pieces costs no more than one that
+ * arrives whole. Only complete messages are decoded, each straight into its String.<br/>
+ * The separator must not be a part of the encoding of any other character, which holds for UTF-8 and
+ * any ASCII separator.<br/>
+ * With a FrameLimit, a message that grows beyond the limit is rejected as soon as the limit is crossed,
+ * whether or not its separator has arrived: either the connection is closed, or the message is dropped
+ * up to its separator.
+ */
+public class LineMessageTokenizer implements MessageTokenizer<StringMessage> {
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /**
+    * A buffer that grew beyond this size for a long message is dropped once it is empty.
+    */
+   private static final int RETAINED_CAPACITY = 64 * 1024;
+
+   private final String _messageSeparator;
+
+   private final byte[] _separatorBytes;
+
+   private final Charset _charset;
+
+   private final CharsetEncoder _encoder;
+
+   private final String _format;
+
+   /**
+    * The limit on the size of a message, or null for no limit.
+    */
+   private final FrameLimit _limit;
+
+   /**
+    * True while dropping the rest of an oversized message, up to its separator.
+    */
+   private boolean _skipping = false;
+
+   private boolean _shouldClose = false;
+
+   private long _rejectedBytes = 0;
+
+   /**
+    * The bytes received so far. The pending bytes are at [_start, _end).
+    */
+   private byte[] _buf = new byte[INITIAL_CAPACITY];
+
+   private int _start = 0;
+
+   private int _end = 0;
+
+   /**
+    * The position the next scan for a separator starts from. No separator starts in [_start, _scanPos).
+    */
+   private int _scanPos = 0;
+
+   /**
+    * The position of the separator that ends the next message, or -1 if it was not found yet.
+    */
+   private int _messageEnd = -1;
+
+   public LineMessageTokenizer(String separator, Charset charset) {
+      this(separator, charset, null);
+   }
+
+   /**
+    * @param limit the limit on the size of a message (not counting its separator), or null for no limit.
+    */
+   public LineMessageTokenizer(String separator, Charset charset, FrameLimit limit) {
+      this._limit = limit;
+      this._messageSeparator = separator;
+      this._separatorBytes = separator.getBytes(charset);
+      this._charset = charset;
+      this._encoder = charset.newEncoder();
+      this._format = "line:" + charset.name() + ":" + separator;
+   }
+
+   /**
+    * Add some bytes to the message stream.
+    * The bytes are copied as they are. Complete messages can be retrieved using the nextMessage() method.
+    *
+    * @param bytes an array of bytes to be appended to the message.
+    */
+   public synchronized void addBytes(ByteBuffer bytes) {
+      if (this._shouldClose) {
+         bytes.position(bytes.limit());
+         return;
+      }
+      int length = bytes.remaining();
+      ensureRoom(length);
+      bytes.get(this._buf, this._end, length);
+      this._end += length;
+      if (this._limit != null) {
+         // enforce the limit right away
+         findMessageEnd();
+      }
+   }
+
+   /**
+    * Is there a complete message ready?.
+    * @return true the next call to nextMessage() will not return null, false otherwise.
+    */
+   public synchronized boolean hasMessage() {
+      return findMessageEnd() > -1;
+   }
+
+   /**
+    * Get the next complete message if it exists, advancing the tokenizer to the next message.
+    * @return the next complete message, and null if no complete message exist.
+    */
+   public synchronized StringMessage nextMessage() {
+      int messageEnd = findMessageEnd();
+      if (messageEnd == -1) {
+         return new StringMessage(null);
+      }
+      StringMessage message = decode(this._buf, this._start, messageEnd - this._start);
+      consume(messageEnd + this._separatorBytes.length);
+      return message;
+   }
+
+   /**
+    * Converts the bytes of a complete message, without its separator, to a message.
+    * Subclasses may parse the bytes straight into a message of their own.
+    */
+   protected StringMessage decode(byte[] bytes, int offset, int length) {
+      return new StringMessage(new String(bytes, offset, length, this._charset));
+   }
+
+   protected Charset getCharset() {
+      return this._charset;
+   }
+
+   public synchronized boolean shouldClose() {
+      return this._shouldClose;
+   }
+
+   public synchronized long getRejectedBytes() {
+      return this._rejectedBytes;
+   }
+
+   /**
+    * Convert the String message into bytes representation, taking care of encoding and framing.
+    *
+    * @return a ByteBuffer with the message content converted to bytes, after framing information has been added.
+    */
+   public synchronized ByteBuffer getBytesForMessage(StringMessage msg) throws CharacterCodingException {
+      StringBuilder sb = new StringBuilder(msg.getMessage());
+      sb.append(this._messageSeparator);
+      return this._encoder.encode(CharBuffer.wrap(sb));
+   }
+
+   /**
+    * Convert the String message into bytes representation, writing the bytes straight into the given buffer,
+    * without any intermediate copies.
+    *
+    * @return true if the whole message was written, false if out is too small to hold it.
+    */
+   public synchronized boolean encodeMessage(StringMessage msg, ByteBuffer out) throws CharacterCodingException {
+      this._encoder.reset();
+      return encode(CharBuffer.wrap(msg.getMessage()), out, false)
+            && encode(CharBuffer.wrap(this._messageSeparator), out, true)
+            && !this._encoder.flush(out).isOverflow();
+   }
+
+   /**
+    * @return the format of the encoded messages, shared by all the tokenizers with the same separator and charset.
+    */
+   public Object getFormat() {
+      return this._format;
+   }
+
+   private boolean encode(CharBuffer chars, ByteBuffer out, boolean endOfInput) throws CharacterCodingException {
+      CoderResult res = this._encoder.encode(chars, out, endOfInput);
+      if (res.isError()) {
+         res.throwException();
+      }
+      return !res.isOverflow();
+   }
+
+   /**
+    * Scans the bytes that were not scanned yet for the separator.
+    * @return the position of the separator that ends the next message, or -1 if there is none yet.
+    */
+   private int findMessageEnd() {
+      if (this._messageEnd > -1) {
+         return this._messageEnd;
+      }
+      while (!this._shouldClose) {
+         int end = scan();
+         if (end == -1) {
+            if (this._limit != null && (this._skipping || this._scanPos - this._start > this._limit.getMaxFrameSize())) {
+               // the message is too large already. drop the bytes that were scanned
+               reject(this._scanPos);
+            }
+            return -1;
+         }
+         if (this._limit != null && (this._skipping || end - this._start > this._limit.getMaxFrameSize())) {
+            reject(end + this._separatorBytes.length);
+            this._skipping = false;
+            continue;
+         }
+         this._messageEnd = end;
+         return end;
+      }
+      return -1;
+   }
+
+   /**
+    * Scans the bytes from _scanPos for the separator.
+    * @return the position of the separator, or -1 if there is none yet.
+    */
+   private int scan() {
+      byte first = this._separatorBytes[0];
+      int last = this._end - this._separatorBytes.length;
+      for (int i = this._scanPos; i <= last; i++) {
+         if (this._buf[i] == first && separatorAt(i)) {
+            return i;
+         }
+      }
+      // a separator may still start in the last few bytes, once the rest of it arrives
+      this._scanPos = Math.max(this._scanPos, last + 1);
+      return -1;
+   }
+
+   /**
+    * Drops the bytes up to the given position, which belong to a message that exceeds the limit, and applies
+    * the policy of the limit.
+    */
+   private void reject(int upTo) {
+      int dropped = upTo - this._start;
+      this._rejectedBytes += dropped;
+      this._limit.rejected(dropped, !this._skipping);
+      if (this._limit.getPolicy() == FrameLimit.Policy.CLOSE) {
+         this._shouldClose = true;
+         consume(this._end);
+      } else {
+         this._skipping = true;
+         consume(upTo);
+      }
+   }
+
+   /**
+    * Drops the bytes up to the given position, which were handled.
+    */
+   private void consume(int upTo) {
+      this._start = upTo;
+      this._scanPos = Math.max(this._scanPos, this._start);
+      this._messageEnd = -1;
+      if (this._start == this._end) {
+         this._start = this._end = this._scanPos = 0;
+         if (this._buf.length > RETAINED_CAPACITY) {
+            this._buf = new byte[INITIAL_CAPACITY];
+         }
+      }
+   }
+
+   private boolean separatorAt(int pos) {
+      for (int i = 1; i < this._separatorBytes.length; i++) {
+         if (this._buf[pos + i] != this._separatorBytes[i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Makes room for more bytes at the end of the buffer, by moving the pending bytes to its beginning, or by
+    * growing it.
+    */
+   private void ensureRoom(int length) {
+      if (this._buf.length - this._end >= length) {
+         return;
+      }
+      int pending = this._end - this._start;
+      byte[] target = this._buf;
+      if (pending + length > this._buf.length) {
+         int capacity = this._buf.length;
+         while (capacity < pending + length) {
+            capacity *= 2;
+         }
+         target = new byte[capacity];
+      }
+      System.arraycopy(this._buf, this._start, target, 0, pending);
+      this._buf = target;
+      this._scanPos -= this._start;
+      if (this._messageEnd > -1) {
+         this._messageEnd -= this._start;
+      }
+      this._end = pending;
+      this._start = 0;
+   }
+}
@@ -8,6 +8,7 @@ public interface MessageTokenizer<T> {
    
    /**
     * Add some bytes to the message stream.
+    * The bytes are consumed by the time this method returns, so the caller may reuse the buffer.
     * @param bytes an array of bytes to be appended to the message stream.
     */
    void addBytes(ByteBuffer bytes);
@@ -30,4 +31,54 @@ public interface MessageTokenizer<T> {
     */
    ByteBuffer getBytesForMessage(T msg) throws CharacterCodingException;
 
+   /**
+    * Convert the message into bytes representation, like getBytesForMessage(), writing the bytes into the given buffer.
+    * @param msg the message to convert.
+    * @param out the buffer to write the message to.
+    * @return true if the whole message was written, false if out is too small to hold it.
+    *         In that case, the content of out is undefined.
+    */
+   default boolean encodeMessage(T msg, ByteBuffer out) throws CharacterCodingException {
+      ByteBuffer bytes = getBytesForMessage(msg);
+      if (bytes.remaining() > out.remaining()) {
+         return false;
+      }
+      out.put(bytes);
+      return true;
+   }
+
+   /**
+    * Identifies the bytes this tokenizer encodes messages into, so that a message sent to many connections
+    * can be encoded once for all the connections whose tokenizers have equal formats.
+    * @return the format of the encoded messages. By default, the tokenizer itself, as its encoding may
+    *         depend on its state.
+    */
+   default Object getFormat() {
+      return this;
+   }
+
+   /**
+    * Should the connection be closed?.
+    * A tokenizer asks for the connection to be closed when the input breaks its rules (e.g. a frame that is
+    * too large). Once it does, it ignores any further input.
+    * @return true if the connection should be closed.
+    */
+   default boolean shouldClose() {
+      return false;
+   }
+
+   /**
+    * @return the number of bytes of input this tokenizer dropped, because they broke its rules.
+    */
+   default long getRejectedBytes() {
+      return 0;
+   }
+
+   /**
+    * Releases the resources the tokenizer holds, once its connection is closed.
+    * The tokenizer ignores any further input after it is closed.
+    */
+   default void close() {
+   }
+
 }
@@ -0,0 +1,105 @@
+package tokenizer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.function.IntFunction;
+
+/**
+ * A tokenizer that lets the client choose the wire format on connect.<br/>
+ * A client that wants another format starts the connection with a preamble of two bytes: {@link #PREAMBLE},
+ * which never appears in UTF-8 text, followed by a byte of flags. The flags are handed to a function that
+ * creates the tokenizer for the rest of the connection. A client that starts with anything else keeps the
+ * default tokenizer, so text clients are not affected.
+ */
+public class NegotiatingMessageTokenizer<T> implements MessageTokenizer<T> {
+
+   /**
+    * The first byte of the preamble.
+    */
+   public static final int PREAMBLE = 0xFF;
+
+   private enum State {
+      /** nothing was received yet */
+      NEW,
+      /** the first byte of the preamble was received, the flags were not */
+      PREAMBLE,
+      /** the tokenizer is chosen */
+      DONE
+   }
+
+   private final IntFunction<MessageTokenizer<T>> _negotiated;
+
+   private volatile MessageTokenizer<T> _tokenizer;
+
+   private State _state = State.NEW;
+
+   private boolean _closed = false;
+
+   /**
+    * @param defaultTokenizer the tokenizer of clients that send no preamble.
+    * @param negotiated creates the tokenizer for the flags of a preamble. It may return null for flags it does
+    *        not support, in which case the default tokenizer is kept.
+    */
+   public NegotiatingMessageTokenizer(MessageTokenizer<T> defaultTokenizer, IntFunction<MessageTokenizer<T>> negotiated) {
+      this._tokenizer = defaultTokenizer;
+      this._negotiated = negotiated;
+   }
+
+   public synchronized void addBytes(ByteBuffer bytes) {
+      if (this._closed) {
+         bytes.position(bytes.limit());
+         return;
+      }
+      if (this._state == State.NEW && bytes.hasRemaining()) {
+         if ((bytes.get(bytes.position()) & 0xFF) == PREAMBLE) {
+            bytes.get();
+            this._state = State.PREAMBLE;
+         } else {
+            this._state = State.DONE;
+         }
+      }
+      if (this._state == State.PREAMBLE && bytes.hasRemaining()) {
+         MessageTokenizer<T> tokenizer = this._negotiated.apply(bytes.get() & 0xFF);
+         if (tokenizer != null) {
+            this._tokenizer = tokenizer;
+         }
+         this._state = State.DONE;
+      }
+      if (bytes.hasRemaining()) {
+         this._tokenizer.addBytes(bytes);
+      }
+   }
+
+   public boolean hasMessage() {
+      return this._tokenizer.hasMessage();
+   }
+
+   public T nextMessage() {
+      return this._tokenizer.nextMessage();
+   }
+
+   public ByteBuffer getBytesForMessage(T msg) throws CharacterCodingException {
+      return this._tokenizer.getBytesForMessage(msg);
+   }
+
+   public boolean encodeMessage(T msg, ByteBuffer out) throws CharacterCodingException {
+      return this._tokenizer.encodeMessage(msg, out);
+   }
+
+   public Object getFormat() {
+      return this._tokenizer.getFormat();
+   }
+
+   public boolean shouldClose() {
+      return this._tokenizer.shouldClose();
+   }
+
+   public long getRejectedBytes() {
+      return this._tokenizer.getRejectedBytes();
+   }
+
+   public synchronized void close() {
+      this._closed = true;
+      this._tokenizer.close();
+   }
+}